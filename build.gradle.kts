@@ -1,6 +1,7 @@
 plugins {
     java
     id("com.github.johnrengelman.shadow").version("5.2.0")
+    id("me.champeau.gradle.jmh").version("0.5.0")
 }
 
 group = "pw.cryow0lf"
@@ -12,13 +13,42 @@ repositories {
 
 dependencies {
     implementation("com.discord4j" ,"discord4j-core", "3.0.+")
+    implementation("com.fasterxml.jackson.core", "jackson-databind", "2.10.+")
+    testImplementation("org.junit.jupiter", "junit-jupiter", "5.6.2")
 }
 
 configure<JavaPluginConvention> {
     sourceCompatibility = JavaVersion.VERSION_12
 }
 
+jmh {
+    jmhVersion = "1.23"
+    profilers = listOf("gc")
+    fork = 1
+    warmupIterations = 3
+    iterations = 5
+}
+
+sourceSets {
+    create("simulation") {
+        compileClasspath += sourceSets.main.get().output + sourceSets.main.get().compileClasspath
+        runtimeClasspath += output + compileClasspath + sourceSets.main.get().runtimeClasspath
+    }
+}
+
 tasks {
+    register<JavaExec>("simulate") {
+        group = "verification"
+        description = "Replays synthetic voice traffic against a simulated discord, e.g. -Pargs=\"guilds=10 rate=200\""
+        classpath = sourceSets["simulation"].runtimeClasspath
+        main = "pw.cryow0lf.sirduck.LoadHarness"
+        args = (project.findProperty("args") as String? ?: "").split(" ").filter { it.isNotBlank() }
+    }
+
+    named<Test>("test") {
+        useJUnitPlatform()
+    }
+
     withType<Jar> {
         manifest {
             attributes["Main-Class"] = "pw.cryow0lf.sirduck.SirDuck"
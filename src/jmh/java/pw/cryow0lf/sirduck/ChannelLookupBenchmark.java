@@ -0,0 +1,138 @@
+package pw.cryow0lf.sirduck;
+
+import discord4j.core.object.util.Snowflake;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+/**
+ * Measures the lookups done for every voice state update, against a guild with an increasing number of voice
+ * channels: Resolving and verifying the temporary text channel of a voice channel through the index, compared to the
+ * scan of all channels it replaced, and finding the highest number to keep of a talk family from the occupancy.
+ * <p>
+ * Every voice channel has a temporary text channel. Half of the voice channels belong to up to ten talk families,
+ * which grow with the guild, the other half are plain channels. The lower half of every family is occupied, so
+ * finding the highest used number passes the empty upper half. Resolving a channel by its id stands in for the store.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ChannelLookupBenchmark {
+    private static final Snowflake GUILD = Snowflake.of(100);
+    private static final Optional<Snowflake> CATEGORY = Optional.of(Snowflake.of(200));
+    private static final FeatureConfig.Settings SETTINGS =
+            new FeatureConfig.Settings(true, true, Duration.ofSeconds(1), 1, 0, null);
+
+    @Param({"10", "100", "1000"})
+    public int channels;
+
+    private final TemporaryChannelIndex index = new TemporaryChannelIndex();
+    private final TalkChannelFamilies families = new TalkChannelFamilies();
+    private final Map<Long, Integer> occupants = new ConcurrentHashMap<>();
+    private final ToIntFunction<Snowflake> occupancy = channel -> occupants.getOrDefault(channel.asLong(), 0);
+    private final Map<Snowflake, FixtureChannel> channelsById = new HashMap<>();
+    private final List<FixtureChannel> guildChannels = new ArrayList<>();
+    private FixtureChannel[] voiceChannels;
+    private String[] topics;
+    private int next;
+
+    @Setup
+    public void setup() {
+        final int talkChannels = Math.max(1, channels / 2);
+        topics = new String[Math.min(10, talkChannels)];
+        for (int family = 0; family < topics.length; family++)
+            topics[family] = "Talk " + (char) ('A' + family) + ' ';
+        final int familySize = talkChannels / topics.length;
+
+        voiceChannels = new FixtureChannel[channels];
+        final Map<Snowflake, Snowflake> textChannels = new HashMap<>();
+        for (int channel = 0; channel < channels; channel++) {
+            final boolean talk = channel < topics.length * familySize;
+            final int number = channel / topics.length + 1;
+            final String name = talk ? topics[channel % topics.length] + number : "Lounge " + channel;
+            final FixtureChannel voice = new FixtureChannel(Snowflake.of(1_000 + channel), name, Optional.empty());
+            final FixtureChannel text = new FixtureChannel(Snowflake.of(100_000 + channel),
+                    TemporaryTextChannels.temporaryChannelName(name), Optional.of(voice.id.asString()));
+            voiceChannels[channel] = voice;
+            textChannels.put(voice.id, text.id);
+            channelsById.put(text.id, text);
+            guildChannels.add(voice);
+            guildChannels.add(text);
+            if (talk ? number <= Math.max(1, familySize / 2) : channel % 2 == 0)
+                occupants.put(voice.id.asLong(), 1);
+        }
+        index.replace(GUILD, textChannels);
+        families.replace(GUILD, sink -> {
+            for (int channel = 0; channel < topics.length * familySize; channel++)
+                sink.put(CATEGORY, topics[channel % topics.length], channel / topics.length + 1,
+                        voiceChannels[channel].id);
+        });
+    }
+
+    @Benchmark
+    public boolean temporaryTextChannelByIndex() {
+        final FixtureChannel voice = nextVoiceChannel();
+        return index.textChannelId(GUILD, voice.id)
+                .map(channelsById::get)
+                .filter(text -> text.isTemporaryChannelOf(voice))
+                .isPresent();
+    }
+
+    @Benchmark
+    public boolean temporaryTextChannelByScan() {
+        final FixtureChannel voice = nextVoiceChannel();
+        final String name = TemporaryTextChannels.temporaryChannelName(voice.name);
+        return guildChannels.stream()
+                .filter(channel -> channel.name.equals(name))
+                .filter(channel -> channel.topic.isPresent())
+                .anyMatch(text -> text.isTemporaryChannelOf(voice));
+    }
+
+    @Benchmark
+    public int highestKeptTalkChannel() {
+        next = (next + 1) % topics.length;
+        return families.family(GUILD, CATEGORY, topics[next])
+                .map(family -> AdditionalTalkChannels.highestKeptNumber(family, SETTINGS, occupancy))
+                .orElse(0);
+    }
+
+    private FixtureChannel nextVoiceChannel() {
+        next = (next + 1) % voiceChannels.length;
+        return voiceChannels[next];
+    }
+
+    /**
+     * The properties of a channel read by the lookups, where only text channels have a topic.
+     */
+    private static final class FixtureChannel {
+        private final Snowflake id;
+        private final String name;
+        private final Optional<String> topic;
+
+        @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+        private FixtureChannel(final Snowflake id, final String name, final Optional<String> topic) {
+            this.id = id;
+            this.name = name;
+            this.topic = topic;
+        }
+
+        private boolean isTemporaryChannelOf(final FixtureChannel voice) {
+            return TemporaryTextChannels.isTemporaryChannel(name, CATEGORY, topic, voice.name, CATEGORY, voice.id);
+        }
+    }
+}
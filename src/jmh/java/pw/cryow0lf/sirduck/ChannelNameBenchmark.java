@@ -0,0 +1,64 @@
+package pw.cryow0lf.sirduck;
+
+import discord4j.core.object.util.Snowflake;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the parsing of talk channel names and the translation of voice into temporary text channel names, which
+ * run for every voice channel passing through the pipelines. Talk channel names are parsed both directly and through
+ * the cache by channel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ChannelNameBenchmark {
+    private static final String[] NAMES = {
+            "Talk 1", "Talk 12", "Gaming Lounge 3", "General", "AFK", "Squad 128", "Music", "Study Room 7",
+            "Among Us", "Raid 2", "Chill Zone", "Team 42"
+    };
+
+    private static final Snowflake[] CHANNELS = new Snowflake[NAMES.length];
+
+    static {
+        for (int channel = 0; channel < CHANNELS.length; channel++)
+            CHANNELS[channel] = Snowflake.of(1_000 + channel);
+    }
+
+    private final TalkChannelName.Cache cache = new TalkChannelName.Cache();
+    private int next;
+
+    @Setup
+    public void setup() {
+        next = 0;
+    }
+
+    @Benchmark
+    public Optional<TalkChannelName> parseTalkChannelName() {
+        return TalkChannelName.parse(name());
+    }
+
+    @Benchmark
+    public Optional<TalkChannelName> parseCachedTalkChannelName() {
+        final String name = name();
+        return cache.parse(CHANNELS[next], name);
+    }
+
+    @Benchmark
+    public String temporaryChannelName() {
+        return TemporaryTextChannels.temporaryChannelName(name());
+    }
+
+    private String name() {
+        next = (next + 1) % NAMES.length;
+        return NAMES[next];
+    }
+}
@@ -0,0 +1,314 @@
+package pw.cryow0lf.sirduck;
+
+import discord4j.core.object.util.Snowflake;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * This class queues all REST actions of the bot per guild, so they do not compete equally for the rate limits of the
+ * guild.
+ * <p>
+ * Every guild has a bounded queue, from which a limited number of actions run at the same time, ordered by their
+ * {@link Priority} and then by submission. If the queue of a guild is full, a further action is offered again after
+ * a growing backoff, until there is room for it, so the submitter is held back instead of losing the action. Every
+ * action provides a condition, which is checked right before it would run, so an action which is not needed anymore,
+ * e.g. the deletion of a channel somebody rejoined, is dropped. An action whose subscription is cancelled is removed
+ * from the queue right away, so it does not take the room of another action.
+ * <p>
+ * The queue of a guild only exists while it has queued or running actions, so guilds without actions, e.g. guilds the
+ * bot left, do not keep a queue or its gauges.
+ * <p>
+ * The actions, their time in the queue, their duration and their failures are recorded per {@link Priority} in the
+ * {@link Metrics}. As the rate limits are handled by discord4j after an action started, the time an action waited for
+ * a rate limit is part of its duration. The depth of the queue of every guild, its running actions, the time its
+ * oldest action is waiting and the average time its actions waited since its queue was created are published as
+ * gauges per guild.
+ */
+final class ActionQueue {
+    private static final Duration FIRST_BACKOFF = Duration.ofMillis(100);
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(5);
+
+    private final Map<Long, Lane> lanes = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final int capacity;
+    private final int concurrency;
+    private final Metrics metrics;
+    private final Metrics.Counter[] calls = new Metrics.Counter[Priority.values().length];
+    private final Metrics.Histogram[] waits = new Metrics.Histogram[Priority.values().length];
+    private final Metrics.Histogram[] durations = new Metrics.Histogram[Priority.values().length];
+    private final Metrics.Counter[] failures = new Metrics.Counter[Priority.values().length];
+    private final Metrics.Counter droppedActions;
+    private final Metrics.Counter rejectedActions;
+
+    /**
+     * @param capacity    The maximum number of queued actions per guild.
+     * @param concurrency The maximum number of running actions per guild.
+     * @param metrics     The {@link Metrics} to record the actions into.
+     */
+    ActionQueue(final int capacity, final int concurrency, final Metrics metrics) {
+        this.capacity = capacity;
+        this.concurrency = concurrency;
+        this.metrics = metrics;
+        for (final Priority priority : Priority.values()) {
+            final String label = priority.name().toLowerCase();
+            calls[priority.ordinal()] = metrics.counter("sirduck_rest_calls_total", "REST actions started",
+                    "priority", label);
+            waits[priority.ordinal()] = metrics.histogram("sirduck_rest_wait_seconds",
+                    "Time a REST action waited in the queue of its guild", "priority", label);
+            durations[priority.ordinal()] = metrics.histogram("sirduck_rest_duration_seconds",
+                    "Time a REST action took, including rate limits", "priority", label);
+            failures[priority.ordinal()] = metrics.counter("sirduck_rest_failures_total", "REST actions which failed",
+                    "priority", label);
+        }
+        this.droppedActions = metrics.counter("sirduck_rest_dropped_total", "REST actions dropped as not needed");
+        this.rejectedActions = metrics.counter("sirduck_rest_rejected_total",
+                "REST actions rejected by a full queue, to be offered again");
+    }
+
+    /**
+     * Submits an action, which is always needed.
+     *
+     * @param guild    The {@link Snowflake} of the guild, the action is queued for.
+     * @param priority The {@link Priority} of the action.
+     * @param action   The {@link Supplier} of the {@link Mono} requesting the action.
+     * @param <T>      The type of the result.
+     * @return A {@link Mono} emitting the result of the action, after it ran.
+     * @see #submit(Snowflake, Priority, BooleanSupplier, Supplier)
+     */
+    <T> Mono<T> submit(final Snowflake guild, final Priority priority, final Supplier<? extends Mono<T>> action) {
+        return submit(guild, priority, () -> true, action);
+    }
+
+    /**
+     * Submits an action. The action is queued once the returned {@link Mono} is subscribed and dropped if the
+     * subscription is cancelled before it ran. If the queue of the guild is full, the action is offered again after a
+     * backoff, until it was queued.
+     *
+     * @param guild    The {@link Snowflake} of the guild, the action is queued for.
+     * @param priority The {@link Priority} of the action.
+     * @param needed   A {@link BooleanSupplier} indicating if the action is still needed. If not, the returned
+     *                 {@link Mono} completes empty without running the action.
+     * @param action   The {@link Supplier} of the {@link Mono} requesting the action.
+     * @param <T>      The type of the result.
+     * @return A {@link Mono} emitting the result of the action, after it ran.
+     */
+    <T> Mono<T> submit(final Snowflake guild, final Priority priority, final BooleanSupplier needed,
+                       final Supplier<? extends Mono<T>> action) {
+        final Mono<T> offer = Mono.create(sink -> {
+            final Entry<T> entry = new Entry<>(priority, sequence.getAndIncrement(), needed, action, sink);
+            final boolean[] queued = new boolean[1];
+            final Lane lane = lanes.compute(guild.asLong(), (id, existing) -> {
+                final Lane current = existing != null ? existing : new Lane(guild);
+                queued[0] = current.offer(entry);
+                return current;
+            });
+            if (!queued[0]) {
+                sink.error(new RejectedExecutionException("Action queue of guild " + guild.asString() + " is full"));
+                return;
+            }
+            sink.onCancel(() -> lane.cancel(entry));
+            lane.drain();
+        });
+        return offer.retryWhen(errors -> errors.index().concatMap(error ->
+                error.getT2() instanceof RejectedExecutionException ? Mono.delay(backoff(error.getT1())) :
+                        Mono.<Long>error(error.getT2())));
+    }
+
+    /**
+     * Returns the backoff before a rejected action is offered again, doubling with every attempt up to a maximum.
+     *
+     * @param attempt The number of previous attempts.
+     * @return The {@link Duration} to wait.
+     */
+    private static Duration backoff(final long attempt) {
+        return Duration.ofMillis(Math.min(MAX_BACKOFF.toMillis(), FIRST_BACKOFF.toMillis() << Math.min(attempt, 16)));
+    }
+
+    /**
+     * The priority of an action, where actions with a lower ordinal run first.
+     */
+    enum Priority {
+        /**
+         * The creation of a channel users are waiting for.
+         */
+        CREATE,
+        /**
+         * Granting or revoking permissions of users.
+         */
+        PERMISSION,
+        /**
+         * Moving channels into their planned positions.
+         */
+        POSITION,
+        /**
+         * The deletion of an unused channel.
+         */
+        DELETE
+    }
+
+    private final class Lane {
+        private static final String DEPTH = "sirduck_queue_depth";
+        private static final String RUNNING = "sirduck_queue_running";
+        private static final String OLDEST_WAIT = "sirduck_queue_oldest_wait_seconds";
+        private static final String AVERAGE_WAIT = "sirduck_queue_average_wait_seconds";
+
+        private final Snowflake guild;
+        private final PriorityQueue<Entry<?>> queue = new PriorityQueue<>();
+        private int running;
+        private long executed;
+        private long totalWait;
+
+        private Lane(final Snowflake guild) {
+            this.guild = guild;
+            final String id = guild.asString();
+            metrics.gauge(DEPTH, "Actions queued for a guild", this::depth, "guild", id);
+            metrics.gauge(RUNNING, "Actions running for a guild", this::active, "guild", id);
+            metrics.gauge(OLDEST_WAIT, "Time the oldest queued action of a guild is waiting",
+                    this::oldestWait, "guild", id);
+            metrics.gauge(AVERAGE_WAIT, "Average time the actions of a guild waited",
+                    this::averageWait, "guild", id);
+        }
+
+        private synchronized boolean offer(final Entry<?> entry) {
+            if (queue.size() >= capacity) {
+                rejectedActions.increment();
+                return false;
+            }
+            return queue.add(entry);
+        }
+
+        private void cancel(final Entry<?> entry) {
+            synchronized (this) {
+                queue.remove(entry);
+            }
+            retire();
+        }
+
+        /**
+         * Removes this lane and its gauges, if it has neither queued nor running actions. As this happens while the
+         * lane is mapped, an action of the guild is either queued into this lane before or into a new lane after.
+         */
+        private void retire() {
+            lanes.computeIfPresent(guild.asLong(), (id, lane) -> {
+                if (lane != this || !isIdle())
+                    return lane;
+                final String label = guild.asString();
+                metrics.remove(DEPTH, "guild", label);
+                metrics.remove(RUNNING, "guild", label);
+                metrics.remove(OLDEST_WAIT, "guild", label);
+                metrics.remove(AVERAGE_WAIT, "guild", label);
+                return null;
+            });
+        }
+
+        private synchronized boolean isIdle() {
+            return queue.isEmpty() && running == 0;
+        }
+
+        private void drain() {
+            Entry<?> entry;
+            while ((entry = next()) != null) {
+                if (entry.dropped) {
+                    entry.sink.success();
+                } else {
+                    final Metrics.Histogram duration = durations[entry.priority.ordinal()];
+                    final Metrics.Counter failure = failures[entry.priority.ordinal()];
+                    final long start = System.nanoTime();
+                    entry.run(() -> {
+                        duration.recordSince(start);
+                        done();
+                    }, failure);
+                }
+            }
+            retire();
+        }
+
+        private synchronized Entry<?> next() {
+            if (running >= concurrency)
+                return null;
+            final Entry<?> entry = queue.poll();
+            if (entry == null)
+                return null;
+            if (!entry.needed.getAsBoolean()) {
+                droppedActions.increment();
+                entry.dropped = true;
+                return entry;
+            }
+            final long wait = System.nanoTime() - entry.enqueued;
+            totalWait += wait;
+            waits[entry.priority.ordinal()].record(Duration.ofNanos(wait));
+            calls[entry.priority.ordinal()].increment();
+            executed++;
+            running++;
+            return entry;
+        }
+
+        private void done() {
+            synchronized (this) {
+                running--;
+            }
+            drain();
+        }
+
+        private synchronized double depth() {
+            return queue.size();
+        }
+
+        private synchronized double active() {
+            return running;
+        }
+
+        private synchronized double oldestWait() {
+            final long now = System.nanoTime();
+            return queue.stream()
+                    .mapToLong(entry -> now - entry.enqueued)
+                    .max()
+                    .orElse(0) / 1e9;
+        }
+
+        private synchronized double averageWait() {
+            return executed == 0 ? 0 : totalWait / 1e9 / executed;
+        }
+    }
+
+    private static final class Entry<T> implements Comparable<Entry<?>> {
+        private final Priority priority;
+        private final long sequence;
+        private final long enqueued = System.nanoTime();
+        private final BooleanSupplier needed;
+        private final Supplier<? extends Mono<T>> action;
+        private final MonoSink<T> sink;
+        private boolean dropped;
+
+        private Entry(final Priority priority, final long sequence, final BooleanSupplier needed,
+                      final Supplier<? extends Mono<T>> action, final MonoSink<T> sink) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.needed = needed;
+            this.action = action;
+            this.sink = sink;
+        }
+
+        private void run(final Runnable done, final Metrics.Counter failure) {
+            Mono.defer(action)
+                    .doOnError(throwable -> failure.increment())
+                    .doFinally(signal -> done.run())
+                    .subscribe(sink::success, sink::error, sink::success);
+        }
+
+        @Override
+        public int compareTo(final Entry<?> other) {
+            final int compare = priority.compareTo(other.priority);
+            return compare != 0 ? compare : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -2,81 +2,241 @@ package pw.cryow0lf.sirduck;
 
 import discord4j.core.event.EventDispatcher;
 import discord4j.core.event.domain.VoiceStateUpdateEvent;
-import discord4j.core.event.domain.guild.GuildCreateEvent;
+import discord4j.core.event.domain.channel.VoiceChannelCreateEvent;
+import discord4j.core.event.domain.channel.VoiceChannelDeleteEvent;
+import discord4j.core.event.domain.channel.VoiceChannelUpdateEvent;
 import discord4j.core.object.VoiceState;
 import discord4j.core.object.entity.Channel;
 import discord4j.core.object.entity.Guild;
+import discord4j.core.object.entity.GuildChannel;
 import discord4j.core.object.entity.VoiceChannel;
 import discord4j.core.object.util.Snowflake;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.Logger;
+import reactor.util.Loggers;
 
-import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
 
 /**
- * This class creates additional voice channels, if the channel name meets the condition "<topic><number>".
+ * This class creates additional voice channels, if the channel name meets the condition "<topic><number>", as parsed
+ * by {@link TalkChannelName}. The feature, the pattern, the grace period, the number of spare channels and the maximum
+ * size of a family are configured per guild and category by the {@link FeatureConfig}.
  * <p>
  * If a user joins a channel, the bot checks if the next channel already exists, if not, the channel is created with
  * the next number in the channel name, as well as with the same permission overrides, user limits, bitrate and in
- * the same category, below the last channel.
+ * the same category. The {@link PositionPlanner} then moves it below the last channel.
  * <p>
- * If a user leaves a voice channel or the bot reconnects, all unnecessary voice channels will be deleted. The
- * channel with the number "1" will always be kept.
+ * Optionally, every family keeps a warm pool of more than one empty channel above its highest used channel. These
+ * spare channels are refilled in the background after a join, so a user joining the next channel never waits for it
+ * to be created, even if the creations are rate limited.
+ * <p>
+ * If a user leaves a voice channel or the bot reconnects, all unnecessary voice channels will be deleted, after the
+ * grace period. The channel with the number "1" and the spare channels will always be kept.
+ * <p>
+ * All talk channels are kept in a {@link TalkChannelFamilies} index, which is built by {@link #plan(Guild, List)} and
+ * updated from the channel events, so checking for the next or highest channel of a family does not list the guild
+ * channels. After the {@link FeatureConfig} was reloaded, the index of every guild with changed settings is dropped, so
+ * it is built again under the new settings by the next event of the guild.
+ * <p>
+ * Every event only requests a {@link #reconcile(Reconciliation)} of the affected family. These are serialized per
+ * family by a {@link KeyedSerializer}, so a burst of joins results in exactly one next channel. The cleanup after a
+ * user left is delayed by a grace period per family through a {@link CleanupScheduler}, so many users leaving at once
+ * result in one cleanup per family, instead of queueing up behind each other. All REST actions are submitted to an
+ * {@link ActionQueue}, so creations are handled before deletions.
+ * <p>
+ * The pipelines are subscribed through {@link Metrics}, which restarts them after an error.
  */
-final class AdditionalTalkChannels {
-    private final static Pattern CHANNEL_PATTERN = Pattern.compile("(.+?)(\\d+)");
+final class AdditionalTalkChannels implements GuildReconciler {
+    private static final Logger LOGGER = Loggers.getLogger(AdditionalTalkChannels.class);
+    private static final String FEATURE = "additional_talk";
 
-    AdditionalTalkChannels(final EventDispatcher eventDispatcher) {
-        eventDispatcher.on(GuildCreateEvent.class)
-                .map(GuildCreateEvent::getGuild)
-                .compose(this::voiceChannels)
-                .filter(channel -> channel.getName().endsWith("1"))
-                .compose(this::talkChannel)
-                .filter(channel -> channel.current == 1)
-                .flatMap(this::highestTalkChannel)
-                .filterWhen(this::missingNextChannel)
-                .flatMap(this::deleteUnusedTalkChannels)
-                .subscribe();
+    private final KeyedSerializer<TalkChannelFamilies.Key, Reconciliation> reconciler;
+    private final TalkChannelName.Cache names = new TalkChannelName.Cache();
+    private final TalkChannelFamilies families;
+    private final CleanupScheduler<TalkChannelFamilies.Key> cleanups;
+    private final VoiceOccupancy occupancy;
+    private final ActionQueue actions;
+    private final FeatureConfig config;
+    private final PositionPlanner positions;
+    private final Metrics.Counter created;
+    private final Metrics.Counter deleted;
+
+    /**
+     * Subscribes to the events to provide the functionality.
+     *
+     * @param eventDispatcher The {@link EventDispatcher} to which the subscriptions are made.
+     * @param occupancy       The {@link VoiceOccupancy} providing the guilds, voice state updates and occupancy.
+     * @param actions         The {@link ActionQueue} all REST actions are submitted to.
+     * @param families        The {@link TalkChannelFamilies} index, possibly restored from a snapshot.
+     * @param config          The {@link FeatureConfig} providing the settings of every guild and category.
+     * @param positions       The {@link PositionPlanner} moving created channels into the order of their family.
+     * @param metrics         The {@link Metrics} to record the channels and latencies into.
+     */
+    AdditionalTalkChannels(final EventDispatcher eventDispatcher, final VoiceOccupancy occupancy,
+                           final ActionQueue actions, final TalkChannelFamilies families,
+                           final FeatureConfig config, final PositionPlanner positions, final Metrics metrics) {
+        this.families = families;
+        this.occupancy = occupancy;
+        this.actions = actions;
+        this.config = config;
+        this.positions = positions;
+        this.cleanups = new CleanupScheduler<>();
+        this.reconciler = new KeyedSerializer<>(this::reconcile, Reconciliation::merge,
+                metrics.errors("additional_talk_reconcile"));
+        this.created = metrics.counter("sirduck_channels_created_total", "Channels created", "feature", FEATURE);
+        this.deleted = metrics.counter("sirduck_channels_deleted_total", "Channels deleted", "feature", FEATURE);
+        final Metrics.Histogram latency = metrics.histogram("sirduck_effect_latency_seconds",
+                "Time from a voice state update until the affected channels were reconciled", "feature", FEATURE);
 
-        eventDispatcher.on(VoiceStateUpdateEvent.class)
+        config.onReload(changed -> families.guilds()
+                .stream()
+                .filter(changed)
+                .forEach(families::drop));
+
+        metrics.subscribe("additional_talk_join", occupancy.updates()
                 .map(VoiceStateUpdateEvent::getCurrent)
                 .flatMap(VoiceState::getChannel)
-                .compose(this::talkChannel)
-                .filterWhen(nextChannelExist(1))
-                .flatMap(this::createNextChannel)
-                .subscribe();
+                .compose(this::talkChannel), channel -> latency.time(submit(channel, false)));
 
-        eventDispatcher.on(VoiceStateUpdateEvent.class)
+        metrics.subscribe("additional_talk_cleanup", occupancy.updates()
                 .filter(event -> event.getOld().isPresent())
                 .map(event -> event.getOld().orElse(null))
                 .flatMap(VoiceState::getChannel)
-                .filterWhen(this::voiceChannelEmpty)
-                .compose(this::talkChannel)
-                .delayElements(Duration.ofSeconds(1))
-                .filterWhen(nextChannelExist(2))
-                .flatMap(this::deleteUnusedTalkChannels)
-                .subscribe();
+                .filter(occupancy::isEmpty)
+                .compose(this::talkChannel), channel -> cleanups.schedule(key(channel),
+                config.settings(channel.voiceChannel).getGracePeriod(), () -> submit(channel, true)));
+
+        metrics.subscribe("additional_talk_index_update", Flux.merge(
+                eventDispatcher.on(VoiceChannelCreateEvent.class).map(VoiceChannelCreateEvent::getChannel),
+                eventDispatcher.on(VoiceChannelUpdateEvent.class).map(VoiceChannelUpdateEvent::getCurrent)
+        ), this::indexChannel);
+
+        metrics.subscribe("additional_talk_index_delete", eventDispatcher.on(VoiceChannelDeleteEvent.class)
+                .map(VoiceChannelDeleteEvent::getChannel), channel -> {
+            names.invalidate(channel.getId());
+            families.remove(channel.getGuildId(), channel.getId());
+        });
+    }
+
+    /**
+     * Replaces the {@link TalkChannelFamilies} index of the guild with all talk channels among the channels and plans
+     * to create the missing spare channels and to delete the unused channels of every family.
+     *
+     * @param guild    The {@link Guild} to be reconciled.
+     * @param channels All channels of the guild, as currently cached.
+     * @return The {@link ReconciliationPlan} with all needed changes.
+     */
+    @Override
+    public ReconciliationPlan plan(final Guild guild, final List<GuildChannel> channels) {
+        final List<TalkChannel> talkChannels = channels.stream()
+                .filter(channel -> channel.getType() == Channel.Type.GUILD_VOICE)
+                .map(VoiceChannel.class::cast)
+                .map(this::parse)
+                .flatMap(Optional::stream)
+                .collect(Collectors.toList());
+        index(guild.getId(), talkChannels);
+
+        final ReconciliationPlan plan = new ReconciliationPlan();
+        talkChannels.stream()
+                .filter(channel -> channel.current == 1)
+                .forEach(channel -> {
+                    final VoiceChannel voice = channel.voiceChannel;
+                    families.family(voice.getGuildId(), voice.getCategoryId(), channel.topic).ifPresent(family -> {
+                        final ReconciliationPlan changes = new ReconciliationPlan();
+                        final int keep = highestKeptNumber(family, config.settings(voice), occupancy::occupants);
+                        final Integer highest = family.numbers().floor(keep);
+                        for (int number = highest == null ? keep + 1 : highest + 1; number <= keep; number++)
+                            changes.change(ReconciliationPlan.Kind.CREATE, name(channel, number));
+                        family.numbers().tailSet(keep, false).stream()
+                                .filter(number -> family.channelId(number).map(occupancy::occupants).orElse(0) <= 0)
+                                .forEach(number -> changes.change(ReconciliationPlan.Kind.DELETE,
+                                        name(channel, number)));
+                        if (!changes.isEmpty())
+                            plan.addAll(changes.action(() -> submit(channel, true)));
+                    });
+                });
+        return plan;
+    }
+
+    /**
+     * Submits a {@link Reconciliation} of the family of the {@link TalkChannel} to the {@link KeyedSerializer}.
+     *
+     * @param channel The {@link TalkChannel} of the family.
+     * @param cleanup Whether unused channels should be deleted.
+     * @return A {@link Mono} completing when the family was reconciled.
+     */
+    private Mono<Void> submit(final TalkChannel channel, final boolean cleanup) {
+        return reconciler.submit(key(channel), new Reconciliation(channel, cleanup));
+    }
+
+    /**
+     * Returns the {@link TalkChannelFamilies.Key} of the family of a {@link TalkChannel}.
+     *
+     * @param channel The {@link TalkChannel} of the family.
+     * @return The corresponding {@link TalkChannelFamilies.Key}.
+     */
+    private TalkChannelFamilies.Key key(final TalkChannel channel) {
+        final VoiceChannel voice = channel.voiceChannel;
+        return TalkChannelFamilies.key(voice.getGuildId(), voice.getCategoryId(), channel.topic);
     }
 
     /**
-     * Requests a boolean indicating if the voice channel is empty. If the voice channel is not empty, a request to
-     * create the next channel with {@link #createNextChannel} is made.
+     * Requests to bring a family in line with its current occupancy. If any spare channel after the highest used
+     * channel is missing, the missing ones get created. If requested, all channels above them are deleted, except the
+     * lowest.
      *
-     * @param channel The {@link TalkChannel} providing the {@link VoiceChannel} to check if its empty.
-     * @return A {@link Mono} indicating if the {@link VoiceChannel} is empty.
+     * @param reconciliation The {@link Reconciliation} providing the family.
+     * @return A {@link Mono} completing when the family is up to date.
      */
-    private Mono<Boolean> missingNextChannel(final TalkChannel channel) {
-        return channel.voiceChannel.getVoiceStates()
-                .count()
-                .map(count -> count <= 0)
-                .flatMap(empty -> empty ? Mono.just(true) :
-                        createNextChannel(channel).map(c -> false)
-                );
+    private Mono<Void> reconcile(final Reconciliation reconciliation) {
+        final TalkChannel channel = reconciliation.channel;
+        return family(channel).flatMap(family -> {
+            final int keep = highestKeptNumber(family, config.settings(channel.voiceChannel), occupancy::occupants);
+            final Integer highest = family.numbers().floor(keep);
+            final Mono<Void> create = highest == null || highest >= keep ? Mono.empty() :
+                    talkChannel(family, channel.topic, highest, channel.voiceChannel)
+                            .flatMap(template -> createNextChannels(template, keep));
+            final Mono<Void> delete = !reconciliation.cleanup ? Mono.empty() :
+                    deleteUnusedTalkChannels(family, channel.topic, keep, channel.voiceChannel);
+            return create.then(delete);
+        });
+    }
+
+    /**
+     * Returns the highest number of the family to be kept: The highest used number plus the spare channels, but at
+     * least {@code 1} and at most the maximum family size, if any.
+     *
+     * @param family    The {@link TalkChannelFamilies.Family} to be used.
+     * @param settings  The {@link FeatureConfig.Settings} of the category of the family.
+     * @param occupants The {@link ToIntFunction} returning the number of users connected to a voice channel.
+     * @return The highest number, which should exist.
+     */
+    static int highestKeptNumber(final TalkChannelFamilies.Family family, final FeatureConfig.Settings settings,
+                                 final ToIntFunction<Snowflake> occupants) {
+        final int keep = Math.max(highestUsedNumber(family, occupants) + settings.getSpareChannels(), 1);
+        return settings.getMaxFamilySize() > 0 ? Math.min(keep, settings.getMaxFamilySize()) : keep;
+    }
+
+    /**
+     * Returns the highest number of the family, whose channel is in use.
+     *
+     * @param family    The {@link TalkChannelFamilies.Family} to be used.
+     * @param occupants The {@link ToIntFunction} returning the number of users connected to a voice channel.
+     * @return The highest used number, or {@code 0} if all channels are empty.
+     */
+    static int highestUsedNumber(final TalkChannelFamilies.Family family, final ToIntFunction<Snowflake> occupants) {
+        for (final int number : family.numbers().descendingSet()) {
+            if (family.channelId(number).map(occupants::applyAsInt).orElse(0) > 0)
+                return number;
+        }
+        return 0;
     }
 
     /**
@@ -87,23 +247,34 @@ final class AdditionalTalkChannels {
      * @return A {@link Flux} emitting all {@link TalkChannel}s.
      */
     private Flux<TalkChannel> talkChannel(final Flux<VoiceChannel> flux) {
-        return flux.handle((channel, sink) -> {
-            final Matcher matcher = CHANNEL_PATTERN.matcher(channel.getName());
-            if (matcher.matches())
-                sink.next(new TalkChannel(channel, matcher.group(1), Integer.parseInt(matcher.group(2))));
-        });
+        return flux.handle((channel, sink) -> parse(channel).ifPresent(sink::next));
     }
 
     /**
-     * Requests a boolean indicating if the voice channel is empty.
+     * Tries to parse the channel name for the pattern configured for its category, if the feature is enabled there.
+     * The parsed name is cached until the channel is renamed or the pattern changed.
      *
-     * @param channel The {@link VoiceChannel} to be checked.
-     * @return A {@link Mono} indicating if the voice channel is empty.
+     * @param channel The {@link VoiceChannel} to be parsed.
+     * @return An {@link Optional} with the corresponding {@link TalkChannel}, if the name matches.
      */
-    private Mono<Boolean> voiceChannelEmpty(final VoiceChannel channel) {
-        return channel.getVoiceStates()
-                .count()
-                .map(count -> count <= 0);
+    private Optional<TalkChannel> parse(final VoiceChannel channel) {
+        final FeatureConfig.Settings settings = config.settings(channel);
+        if (!settings.isAdditionalTalkEnabled())
+            return Optional.empty();
+        return names.parse(channel.getId(), channel.getName(), settings.getFamilyPattern())
+                .map(name -> new TalkChannel(channel, name.getTopic(), name.getNumber()));
+    }
+
+    /**
+     * Returns the name of the channel with the number in the family of the {@link TalkChannel}, for the plan.
+     *
+     * @param channel The {@link TalkChannel} of the family.
+     * @param number  The number of the channel.
+     * @return The name of the channel.
+     */
+    private String name(final TalkChannel channel, final int number) {
+        return TalkChannelName.rename(channel.voiceChannel.getName(),
+                config.settings(channel.voiceChannel).getFamilyPattern(), number).orElse(channel.topic + number);
     }
 
     /**
@@ -120,102 +291,150 @@ final class AdditionalTalkChannels {
     }
 
     /**
-     * Returns a function accepting a {@link Flux} emitting a guild and requests all {@link VoiceChannel}s with a
-     * specific channel name and category id.
+     * Requests all voice channels of the guild once and replaces the {@link TalkChannelFamilies} index of the guild
+     * with all talk channels found among them.
+     *
+     * @param guild The {@link Guild} to be indexed.
+     * @return A {@link Flux} emitting all {@link TalkChannel}s of the guild, after the index was built.
+     */
+    private Flux<TalkChannel> indexGuild(final Guild guild) {
+        return Flux.just(guild)
+                .compose(this::voiceChannels)
+                .compose(this::talkChannel)
+                .collectList()
+                .doOnNext(channels -> index(guild.getId(), channels))
+                .flatMapIterable(Function.identity());
+    }
+
+    /**
+     * Replaces the {@link TalkChannelFamilies} index of the guild with the provided talk channels.
      *
-     * @param channelName The channel name to be filtered for.
-     * @param category    A {@link Optional} with the {@link Snowflake} of the category, if available.
-     * @return The {@link Function} bound to the specific parameters.
+     * @param guild    The {@link Snowflake} of the guild.
+     * @param channels All {@link TalkChannel}s of the guild.
      */
-    @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
-    private Function<Flux<Guild>, Flux<VoiceChannel>> talkChannel(final String channelName,
-                                                                  final Optional<Snowflake> category) {
-        return flux -> voiceChannels(flux)
-                .filter(channel -> channel.getCategoryId().equals(category))
-                .filter(channel -> channel.getName().equals(channelName));
+    private void index(final Snowflake guild, final List<TalkChannel> channels) {
+        families.replace(guild, sink -> channels.forEach(channel ->
+                sink.put(channel.voiceChannel.getCategoryId(), channel.topic, channel.current,
+                        channel.voiceChannel.getId())
+        ));
     }
 
     /**
-     * Returns a function accepting a {@link TalkChannel} and requests a boolean indicating if the next talk channel
-     * (by the passed offset) exists
+     * Adds the voice channel to its family in the {@link TalkChannelFamilies} index, if the name matches the pattern,
+     * else removes it from any family it was part of before.
      *
-     * @param offset The offset to be used. For checking the next {@link TalkChannel}, pass 1.
-     * @return The {@link Function} bound to the specific parameters.
+     * @param channel The created or updated {@link VoiceChannel}.
      */
-    private Function<TalkChannel, Mono<Boolean>> nextChannelExist(final int offset) {
-        return channel -> talkChannel(
-                channel.topic + (channel.current + offset), channel.voiceChannel.getCategoryId()
-        )
-                .apply(channel.voiceChannel.getGuild().flux())
-                .hasElements()
-                .map(bool -> !bool);
+    private void indexChannel(final VoiceChannel channel) {
+        parse(channel).ifPresentOrElse(
+                talkChannel -> families.put(channel.getGuildId(), channel.getCategoryId(), talkChannel.topic,
+                        talkChannel.current, channel.getId()),
+                () -> families.remove(channel.getGuildId(), channel.getId())
+        );
     }
 
     /**
-     * Requests to delete all unused {@link TalkChannel}s except the lowest.
+     * Requests the {@link TalkChannelFamilies.Family} of a {@link TalkChannel}. If the guild is not indexed yet, it
+     * gets indexed by {@link #indexGuild(Guild)} first.
      *
-     * @param channel The {@link TalkChannel} with the topic to use.
-     * @return The {@link Flux} requesting the deletion.
+     * @param channel The {@link TalkChannel} providing the guild, category and topic.
+     * @return A {@link Mono} emitting the {@link TalkChannelFamilies.Family}, if any channel of it exists.
      */
-    private Flux<Void> deleteUnusedTalkChannels(final TalkChannel channel) {
-        final String topic = channel.topic;
-        final int current = channel.current;
+    private Mono<TalkChannelFamilies.Family> family(final TalkChannel channel) {
         final VoiceChannel voice = channel.voiceChannel;
+        final Mono<Void> indexed = families.isIndexed(voice.getGuildId()) ? Mono.empty() :
+                voice.getGuild().flatMapMany(this::indexGuild).then();
+        return indexed.then(Mono.fromCallable(() ->
+                families.family(voice.getGuildId(), voice.getCategoryId(), channel.topic).orElse(null)
+        ));
+    }
 
-        return Flux.range(1, current - 1)
-                .map(number -> current - number)
-                .filterWhen(number ->
-                        voice.getGuild()
-                                .flux()
-                                .compose(talkChannel(topic + number, voice.getCategoryId()))
-                                .flatMap(this::voiceChannelEmpty)
-                                .map(bool -> !bool)
-                )
-                .reduce(Math::max)
-                .defaultIfEmpty(0)
-                .flatMapMany(lastFull -> Flux.range(lastFull + 2, current - lastFull))
-                .flatMap(number -> voice.getGuild()
-                        .flux()
-                        .compose(talkChannel(topic + number, voice.getCategoryId()))
-                )
-                .flatMap(c -> c.delete("Automated Voice Channel"));
+    /**
+     * Requests the {@link VoiceChannel} with a specific number of a {@link TalkChannelFamilies.Family}.
+     *
+     * @param family The {@link TalkChannelFamilies.Family} to be used.
+     * @param topic  The topic of the family.
+     * @param number The number of the channel.
+     * @param voice  Any {@link VoiceChannel} of the guild, used to access the client.
+     * @return A {@link Mono} emitting the corresponding {@link TalkChannel}, if available.
+     */
+    private Mono<TalkChannel> talkChannel(final TalkChannelFamilies.Family family, final String topic,
+                                          final int number, final VoiceChannel voice) {
+        return Mono.justOrEmpty(family.channelId(number))
+                .flatMap(voice.getClient()::getChannelById)
+                .onErrorResume(throwable -> Mono.empty())
+                .ofType(VoiceChannel.class)
+                .map(channel -> new TalkChannel(channel, topic, number));
     }
 
+    /**
+     * Requests to delete all unused {@link TalkChannel}s of the family above the number to keep.
+     *
+     * @param family The {@link TalkChannelFamilies.Family} to be used.
+     * @param topic  The topic of the family.
+     * @param keep   The highest number to be kept.
+     * @param voice  Any {@link VoiceChannel} of the guild, used to access the client.
+     * @return A {@link Mono} completing when the channels were deleted.
+     */
+    private Mono<Void> deleteUnusedTalkChannels(final TalkChannelFamilies.Family family, final String topic,
+                                                final int keep, final VoiceChannel voice) {
+        return Flux.fromIterable(new ArrayList<>(family.numbers().tailSet(keep, false)))
+                .flatMap(number -> talkChannel(family, topic, number, voice))
+                .filter(channel -> occupancy.isEmpty(channel.voiceChannel))
+                .flatMap(channel -> actions.submit(voice.getGuildId(), ActionQueue.Priority.DELETE,
+                        () -> occupancy.isEmpty(channel.voiceChannel),
+                        () -> channel.voiceChannel.delete("Automated Voice Channel")
+                                .doOnSuccess(ignored -> deleted.increment())
+                ))
+                .then();
+    }
 
     /**
-     * Requests the creation of the next {@link TalkChannel}.
+     * Requests the creation of all {@link TalkChannel}s after the channel up to the number, one after another, each
+     * copied from the channel before.
      *
      * @param channel The current {@link TalkChannel}.
-     * @return A {@link Mono} returning the new created {@link VoiceChannel}.
+     * @param highest The number of the last channel to be created.
+     * @return A {@link Mono} completing when all channels were created.
      */
-    private Mono<VoiceChannel> createNextChannel(final TalkChannel channel) {
-        final VoiceChannel voice = channel.voiceChannel;
-        return voice.getGuild()
-                .flatMap(guild -> guild.createVoiceChannel(spec ->
-                        spec.setName(channel.topic + (channel.current + 1))
-                                .setBitrate(voice.getBitrate())
-                                .setParentId(voice.getCategoryId().orElse(null))
-                                .setUserLimit(voice.getUserLimit())
-                                .setPermissionOverwrites(voice.getPermissionOverwrites())
-                                .setPosition(voice.getRawPosition() + 1)
-                                .setReason("Automated Voice Channel")
-                ));
+    private Mono<Void> createNextChannels(final TalkChannel channel, final int highest) {
+        if (channel.current >= highest)
+            return Mono.empty();
+        return createNextChannel(channel)
+                .flatMap(voice -> createNextChannels(new TalkChannel(voice, channel.topic, channel.current + 1),
+                        highest));
     }
 
     /**
-     * Requests the highest {@link TalkChannel} with the specific topic.
+     * Requests the creation of the next {@link TalkChannel}. Nothing is created if the name of the next channel would
+     * not parse back into the family, as the family would never see the channel and create it again on every join.
      *
-     * @param channel The {@link TalkChannel} providing the topic to use.
-     * @return {@link Mono} returning the highest {@link TalkChannel}.
+     * @param channel The current {@link TalkChannel}.
+     * @return A {@link Mono} returning the new created {@link VoiceChannel}.
      */
-    private Mono<TalkChannel> highestTalkChannel(final TalkChannel channel) {
-        return channel.voiceChannel.getGuild()
-                .flux()
-                .compose(this::voiceChannels)
-                .filter(voiceChannel -> voiceChannel.getCategoryId().equals(channel.voiceChannel.getCategoryId()))
-                .compose(this::talkChannel)
-                .filter(talkChannel -> talkChannel.topic.equals(channel.topic))
-                .reduce((channel1, channel2) -> channel1.current < channel2.current ? channel2 : channel1);
+    private Mono<VoiceChannel> createNextChannel(final TalkChannel channel) {
+        final VoiceChannel voice = channel.voiceChannel;
+        final Optional<String> name = TalkChannelName.rename(voice.getName(),
+                config.settings(voice).getFamilyPattern(), channel.current + 1);
+        if (name.isEmpty()) {
+            LOGGER.warn("Not creating channel {} after {}, as its name would not match the family pattern",
+                    channel.current + 1, voice.getName());
+            return Mono.empty();
+        }
+        return voice.getGuild()
+                .flatMap(guild -> actions.submit(voice.getGuildId(), ActionQueue.Priority.CREATE, () ->
+                        guild.createVoiceChannel(spec ->
+                                spec.setName(name.get())
+                                        .setBitrate(voice.getBitrate())
+                                        .setParentId(voice.getCategoryId().orElse(null))
+                                        .setUserLimit(voice.getUserLimit())
+                                        .setPermissionOverwrites(voice.getPermissionOverwrites())
+                                        .setReason("Automated Voice Channel")
+                        )
+                ))
+                .doOnNext(next -> created.increment())
+                .doOnNext(this::indexChannel)
+                .doOnNext(positions::submit);
     }
 
     private static class TalkChannel {
@@ -253,4 +472,21 @@ final class AdditionalTalkChannels {
             return Objects.hash(voiceChannel, topic, current);
         }
     }
+
+    private static final class Reconciliation {
+        private final TalkChannel channel;
+        private final boolean cleanup;
+
+        private Reconciliation(final TalkChannel channel, final boolean cleanup) {
+            this.channel = channel;
+            this.cleanup = cleanup;
+        }
+
+        /**
+         * Merges a queued with a newly submitted {@link Reconciliation}, keeping a requested cleanup.
+         */
+        private static Reconciliation merge(final Reconciliation queued, final Reconciliation submitted) {
+            return new Reconciliation(submitted.channel, queued.cleanup || submitted.cleanup);
+        }
+    }
 }
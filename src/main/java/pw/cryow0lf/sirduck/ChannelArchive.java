@@ -0,0 +1,145 @@
+package pw.cryow0lf.sirduck;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import discord4j.core.object.entity.Attachment;
+import discord4j.core.object.entity.Message;
+import discord4j.core.object.entity.TextChannel;
+import discord4j.core.object.util.Snowflake;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.Logger;
+import reactor.util.Loggers;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class archives the messages of a text channel into a gzip compressed file of JSON lines, one message per line,
+ * before the channel is deleted.
+ * <p>
+ * The history is requested page by page and every message is written as soon as its page arrived, so a channel with
+ * many messages is never held in memory. All writes run on the elastic scheduler, never on the threads of the event
+ * pipelines. The messages are written from the newest to the oldest.
+ * <p>
+ * Every channel gets its own file {@code <directory>/<guild>/<channel>-<epoch millis>.jsonl.gz}. It is written to a
+ * temporary file first, which is only moved into place once the history is complete, so an existing archive file is
+ * always complete.
+ */
+final class ChannelArchive {
+    private static final Logger LOGGER = Loggers.getLogger(ChannelArchive.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Path directory;
+    private final Metrics.Counter messages;
+    private final Metrics.Counter failures;
+    private final Metrics.Histogram durations;
+
+    /**
+     * @param directory The {@link Path} of the directory the archives are written into.
+     * @param metrics   The {@link Metrics} to record the archived messages into.
+     */
+    ChannelArchive(final Path directory, final Metrics metrics) {
+        this.directory = directory;
+        this.messages = metrics.counter("sirduck_archived_messages_total", "Messages written into archives");
+        this.failures = metrics.counter("sirduck_archive_failures_total", "Channels which failed to be archived");
+        this.durations = metrics.histogram("sirduck_archive_seconds", "Time to archive the history of a channel");
+    }
+
+    /**
+     * Requests the complete history of the text channel and writes it into a new archive file.
+     *
+     * @param channel The {@link TextChannel} to be archived.
+     * @return A {@link Mono} emitting the number of archived messages, once the archive file is complete.
+     */
+    Mono<Long> archive(final TextChannel channel) {
+        final Instant now = Instant.now();
+        final Path target = directory.resolve(channel.getGuildId().asString())
+                .resolve(channel.getId().asString() + '-' + now.toEpochMilli() + ".jsonl.gz");
+        final Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        final long start = System.nanoTime();
+
+        return Flux.using(() -> open(temporary), out -> channel.getMessagesBefore(Snowflake.of(now))
+                .publishOn(Schedulers.elastic())
+                .doOnNext(message -> write(out, message)), ChannelArchive::close)
+                .count()
+                .map(count -> {
+                    move(temporary, target);
+                    return count;
+                })
+                .subscribeOn(Schedulers.elastic())
+                .doOnNext(count -> {
+                    durations.recordSince(start);
+                    LOGGER.info("Archived {} messages of channel {} into {}", count, channel.getId().asString(),
+                            target);
+                })
+                .doOnError(throwable -> {
+                    failures.increment();
+                    LOGGER.warn("Failed to archive channel {}", channel.getId().asString(), throwable);
+                    delete(temporary);
+                });
+    }
+
+    private static OutputStream open(final Path path) throws IOException {
+        Files.createDirectories(path.getParent());
+        return new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(path)));
+    }
+
+    private void write(final OutputStream out, final Message message) {
+        final ObjectNode node = MAPPER.createObjectNode()
+                .put("id", message.getId().asString())
+                .put("timestamp", message.getTimestamp().toString());
+        message.getEditedTimestamp().ifPresent(edited -> node.put("edited_timestamp", edited.toString()));
+        message.getAuthor().ifPresent(author -> node.putObject("author")
+                .put("id", author.getId().asString())
+                .put("username", author.getUsername())
+                .put("discriminator", author.getDiscriminator())
+                .put("bot", author.isBot()));
+        node.put("content", message.getContent().orElse(""));
+        final ArrayNode attachments = node.putArray("attachments");
+        for (final Attachment attachment : message.getAttachments())
+            attachments.addObject()
+                    .put("filename", attachment.getFilename())
+                    .put("url", attachment.getUrl());
+        try {
+            out.write(MAPPER.writeValueAsBytes(node));
+            out.write('\n');
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        messages.increment();
+    }
+
+    private static void close(final OutputStream out) {
+        try {
+            out.close();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void move(final Path temporary, final Path target) {
+        try {
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void delete(final Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to delete incomplete archive {}", path, e);
+        }
+    }
+}
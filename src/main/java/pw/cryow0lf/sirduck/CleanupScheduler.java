@@ -0,0 +1,53 @@
+package pw.cryow0lf.sirduck;
+
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class delays cleanups by a grace period, independently for every key. The grace period may differ per key.
+ * <p>
+ * Scheduling a cleanup for a key which already has a pending one restarts the grace period, and cancelling it drops
+ * the cleanup, e.g. if somebody rejoined in time. A cleanup is expected to act on the current state, so a cleanup
+ * racing with a cancel or a reschedule may run, but never does any harm.
+ *
+ * @param <K> The type of the key, e.g. the {@link discord4j.core.object.util.Snowflake} of a channel.
+ */
+final class CleanupScheduler<K> {
+    private final Map<K, Disposable> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Schedules a cleanup for the key after the grace period, replacing any pending cleanup of the key.
+     *
+     * @param key         The key of the cleanup.
+     * @param gracePeriod The {@link Duration} to wait before the cleanup runs, as configured for the key.
+     * @param cleanup     The {@link Runnable} to be run after the grace period.
+     */
+    void schedule(final K key, final Duration gracePeriod, final Runnable cleanup) {
+        pending.compute(key, (k, current) -> {
+            if (current != null)
+                current.dispose();
+            final Disposable.Swap scheduled = Disposables.swap();
+            scheduled.update(Mono.delay(gracePeriod).subscribe(tick -> {
+                pending.remove(k, scheduled);
+                cleanup.run();
+            }));
+            return scheduled;
+        });
+    }
+
+    /**
+     * Cancels the pending cleanup of the key, if any.
+     *
+     * @param key The key of the cleanup.
+     */
+    void cancel(final K key) {
+        final Disposable cleanup = pending.remove(key);
+        if (cleanup != null)
+            cleanup.dispose();
+    }
+}
@@ -0,0 +1,376 @@
+package pw.cryow0lf.sirduck;
+
+import discord4j.core.object.entity.CategorizableChannel;
+import discord4j.core.object.util.Snowflake;
+import reactor.util.Logger;
+import reactor.util.Loggers;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * This class provides the {@link Settings} of the features per guild and category, read from a properties file which
+ * is reloaded whenever it changes, without reconnecting.
+ * <p>
+ * Every setting can be given as default, per guild and per category of a guild, where the more specific one wins:
+ * <pre>
+ * default.temporaryText=true
+ * default.additionalTalk=true
+ * default.gracePeriod=PT1S
+ * default.spareChannels=1
+ * default.maxFamilySize=0
+ * guild.&lt;guild&gt;.temporaryText=false
+ * guild.&lt;guild&gt;.category.&lt;category&gt;.familyPattern=(Squad )(\d+)
+ * </pre>
+ * A {@code maxFamilySize} of {@code 0} means unlimited. A {@code familyPattern} needs two groups, the topic and the
+ * number, and replaces the default pattern of {@link TalkChannelName}. New channels are named by replacing the number
+ * in the name of a channel of the family, and are only created if that name matches the pattern again.
+ * <p>
+ * The file is compiled into maps from the guild and category ids to their fully merged {@link Settings}, so looking
+ * up the settings of a channel on the event path costs two map lookups. A reload swaps the maps as a whole, so a
+ * lookup never sees half of a reload. If the file is invalid, the previous settings are kept.
+ * <p>
+ * State derived from the settings, like the index of the talk channel families, registers a listener by
+ * {@link #onReload(Consumer)}, which learns after every reload which guilds got different settings.
+ */
+final class FeatureConfig {
+    private static final Logger LOGGER = Loggers.getLogger(FeatureConfig.class);
+    private static final String DEFAULT = "default.";
+    private static final String GUILD = "guild.";
+    private static final String CATEGORY = ".category.";
+
+    private final Settings defaults;
+    private final List<Consumer<Predicate<Snowflake>>> listeners = new CopyOnWriteArrayList<>();
+    private volatile Compiled compiled;
+
+    /**
+     * @param defaults The {@link Settings} used for everything the file does not configure.
+     */
+    FeatureConfig(final Settings defaults) {
+        this.defaults = defaults;
+        this.compiled = new Compiled(defaults, Map.of(), Map.of(), Map.of());
+    }
+
+    /**
+     * Registers a listener, which is called after every reload with a {@link Predicate} matching all guilds whose
+     * settings, or the settings of any of their categories, changed by the reload.
+     *
+     * @param listener The {@link Consumer} of the changed guilds.
+     */
+    void onReload(final Consumer<Predicate<Snowflake>> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Returns the settings of the category of a channel, or of its guild, if the category is not configured.
+     *
+     * @param channel The {@link CategorizableChannel} to look up.
+     * @return The {@link Settings} of the channel.
+     */
+    Settings settings(final CategorizableChannel channel) {
+        return settings(channel.getGuildId(), channel.getCategoryId());
+    }
+
+    /**
+     * Returns the settings of the category, or of the guild, if the category is not configured.
+     *
+     * @param guild    The {@link Snowflake} of the guild.
+     * @param category The {@link Snowflake} of the category, if any.
+     * @return The {@link Settings} of the category.
+     */
+    Settings settings(final Snowflake guild, final Optional<Snowflake> category) {
+        final Compiled current = compiled;
+        if (category.isPresent()) {
+            final Settings settings = current.categories.get(category.get().asLong());
+            if (settings != null)
+                return settings;
+        }
+        return current.guilds.getOrDefault(guild.asLong(), current.defaults);
+    }
+
+    /**
+     * Reads and compiles the file and replaces the current settings. A missing file resets all settings to the
+     * defaults.
+     *
+     * @param path The {@link Path} of the properties file.
+     * @throws IOException              If the file could not be read.
+     * @throws IllegalArgumentException If a setting is invalid.
+     */
+    void load(final Path path) throws IOException {
+        final Properties properties = new Properties();
+        try (final Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (final NoSuchFileException e) {
+            swap(new Compiled(defaults, Map.of(), Map.of(), Map.of()));
+            return;
+        }
+        final Compiled next = compile(properties);
+        swap(next);
+        LOGGER.info("Loaded feature configuration {} with {} guilds and {} categories", path,
+                next.guilds.size(), next.categories.size());
+    }
+
+    /**
+     * Replaces the current settings and notifies the listeners about the guilds whose settings changed.
+     *
+     * @param next The {@link Compiled} settings to be used from now on.
+     */
+    private void swap(final Compiled next) {
+        final Compiled previous = compiled;
+        compiled = next;
+        final Predicate<Snowflake> changed = previous.defaults.equals(next.defaults) ? guild ->
+                !previous.sameGuild(next, guild.asLong()) : guild -> true;
+        listeners.forEach(listener -> listener.accept(changed));
+    }
+
+    /**
+     * Loads the file and reloads it on every change, from a daemon thread.
+     *
+     * @param path The {@link Path} of the properties file.
+     * @throws IOException If the directory of the file could not be watched.
+     */
+    void watch(final Path path) throws IOException {
+        final Path file = path.toAbsolutePath();
+        final WatchService watcher = file.getFileSystem().newWatchService();
+        file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        tryLoad(file);
+
+        final Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    final WatchKey key = watcher.take();
+                    boolean changed = false;
+                    for (final WatchEvent<?> event : key.pollEvents())
+                        changed |= file.getFileName().equals(event.context());
+                    key.reset();
+                    if (changed)
+                        tryLoad(file);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (final ClosedWatchServiceException e) {
+                LOGGER.info("Stopped watching feature configuration {}", file);
+            }
+        }, "sirduck-config");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void tryLoad(final Path path) {
+        try {
+            load(path);
+        } catch (final IOException | IllegalArgumentException e) {
+            LOGGER.warn("Failed to load feature configuration {}, keeping the previous one", path, e);
+        }
+    }
+
+    /**
+     * Compiles the properties into the merged settings of every configured guild and category.
+     *
+     * @param properties The {@link Properties} read from the file.
+     * @return The {@link Compiled} settings.
+     */
+    private Compiled compile(final Properties properties) {
+        final Settings base = defaults.with(properties, DEFAULT);
+        final Map<Long, Settings> guilds = new HashMap<>();
+        final Map<Long, Settings> categories = new HashMap<>();
+        final Map<Long, Long> categoryGuilds = new HashMap<>();
+        for (final String name : properties.stringPropertyNames()) {
+            if (!name.startsWith(GUILD))
+                continue;
+            final long guild = id(name, GUILD.length());
+            final String guildPrefix = GUILD + Long.toUnsignedString(guild) + '.';
+            final Settings guildSettings = guilds.computeIfAbsent(guild, id -> base.with(properties, guildPrefix));
+            if (name.startsWith(CATEGORY, guildPrefix.length() - 1)) {
+                final long category = id(name, guildPrefix.length() + CATEGORY.length() - 1);
+                categoryGuilds.put(category, guild);
+                categories.computeIfAbsent(category, id -> guildSettings.with(properties,
+                        guildPrefix + CATEGORY.substring(1) + Long.toUnsignedString(category) + '.'));
+            }
+        }
+        return new Compiled(base, guilds, categories, categoryGuilds);
+    }
+
+    private static long id(final String name, final int start) {
+        final int end = name.indexOf('.', start);
+        try {
+            return Long.parseUnsignedLong(name.substring(start, end < 0 ? name.length() : end));
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid id in " + name, e);
+        }
+    }
+
+    /**
+     * The settings of the features for a guild or category.
+     */
+    static final class Settings {
+        private final boolean temporaryText;
+        private final boolean additionalTalk;
+        private final Duration gracePeriod;
+        private final int spareChannels;
+        private final int maxFamilySize;
+        private final Pattern familyPattern;
+
+        /**
+         * @param temporaryText  Whether voice channels get temporary text channels.
+         * @param additionalTalk Whether talk families get additional channels.
+         * @param gracePeriod    The {@link Duration} to wait after a user left, before unused channels are deleted.
+         * @param spareChannels  The number of empty channels every family keeps above its highest used channel.
+         * @param maxFamilySize  The maximum number of channels of a family, or {@code 0} for no limit.
+         * @param familyPattern  The {@link Pattern} of talk channel names, or {@code null} for the default pattern.
+         */
+        Settings(final boolean temporaryText, final boolean additionalTalk, final Duration gracePeriod,
+                 final int spareChannels, final int maxFamilySize, final Pattern familyPattern) {
+            if (spareChannels < 1)
+                throw new IllegalArgumentException("At least one spare channel is needed: " + spareChannels);
+            if (maxFamilySize < 0)
+                throw new IllegalArgumentException("Invalid maximum family size: " + maxFamilySize);
+            if (gracePeriod.isNegative())
+                throw new IllegalArgumentException("Invalid grace period: " + gracePeriod);
+            if (familyPattern != null && familyPattern.matcher("").groupCount() < 2)
+                throw new IllegalArgumentException("Family pattern needs a topic and number group: " + familyPattern);
+            this.temporaryText = temporaryText;
+            this.additionalTalk = additionalTalk;
+            this.gracePeriod = gracePeriod;
+            this.spareChannels = spareChannels;
+            this.maxFamilySize = maxFamilySize;
+            this.familyPattern = familyPattern;
+        }
+
+        /**
+         * Returns these settings, overridden by all properties with the prefix.
+         */
+        private Settings with(final Properties properties, final String prefix) {
+            try {
+                final String pattern = properties.getProperty(prefix + "familyPattern");
+                return new Settings(
+                        bool(properties, prefix + "temporaryText", temporaryText),
+                        bool(properties, prefix + "additionalTalk", additionalTalk),
+                        Duration.parse(properties.getProperty(prefix + "gracePeriod", gracePeriod.toString())),
+                        Integer.parseInt(properties.getProperty(prefix + "spareChannels",
+                                Integer.toString(spareChannels))),
+                        Integer.parseInt(properties.getProperty(prefix + "maxFamilySize",
+                                Integer.toString(maxFamilySize))),
+                        pattern == null ? familyPattern : pattern.isEmpty() ? null : Pattern.compile(pattern)
+                );
+            } catch (final RuntimeException e) {
+                throw new IllegalArgumentException("Invalid settings " + prefix + "*: " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Returns the boolean property, which needs to be {@code true} or {@code false} if set, unlike
+         * {@link Boolean#parseBoolean(String)}, which reads every typo as {@code false}.
+         */
+        private static boolean bool(final Properties properties, final String name, final boolean fallback) {
+            final String value = properties.getProperty(name);
+            if (value == null)
+                return fallback;
+            if (value.trim().equalsIgnoreCase("true"))
+                return true;
+            if (value.trim().equalsIgnoreCase("false"))
+                return false;
+            throw new IllegalArgumentException("Invalid boolean " + name + "=" + value);
+        }
+
+        boolean isTemporaryTextEnabled() {
+            return temporaryText;
+        }
+
+        boolean isAdditionalTalkEnabled() {
+            return additionalTalk;
+        }
+
+        Duration getGracePeriod() {
+            return gracePeriod;
+        }
+
+        int getSpareChannels() {
+            return spareChannels;
+        }
+
+        int getMaxFamilySize() {
+            return maxFamilySize;
+        }
+
+        Pattern getFamilyPattern() {
+            return familyPattern;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Settings that = (Settings) o;
+            return temporaryText == that.temporaryText &&
+                    additionalTalk == that.additionalTalk &&
+                    spareChannels == that.spareChannels &&
+                    maxFamilySize == that.maxFamilySize &&
+                    Objects.equals(gracePeriod, that.gracePeriod) &&
+                    Objects.equals(patternKey(familyPattern), patternKey(that.familyPattern));
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(temporaryText, additionalTalk, gracePeriod, spareChannels, maxFamilySize,
+                    patternKey(familyPattern));
+        }
+
+        private static String patternKey(final Pattern pattern) {
+            return pattern == null ? null : pattern.flags() + ":" + pattern.pattern();
+        }
+    }
+
+    private static final class Compiled {
+        private final Settings defaults;
+        private final Map<Long, Settings> guilds;
+        private final Map<Long, Settings> categories;
+        private final Map<Long, Long> categoryGuilds;
+
+        private Compiled(final Settings defaults, final Map<Long, Settings> guilds,
+                         final Map<Long, Settings> categories, final Map<Long, Long> categoryGuilds) {
+            this.defaults = defaults;
+            this.guilds = guilds;
+            this.categories = categories;
+            this.categoryGuilds = categoryGuilds;
+        }
+
+        /**
+         * Returns a boolean indicating if the guild and all of its categories have the same settings in both, given
+         * that both have the same defaults.
+         */
+        private boolean sameGuild(final Compiled other, final long guild) {
+            return Objects.equals(guilds.get(guild), other.guilds.get(guild))
+                    && sameCategories(other, guild) && other.sameCategories(this, guild);
+        }
+
+        private boolean sameCategories(final Compiled other, final long guild) {
+            return categoryGuilds.entrySet()
+                    .stream()
+                    .filter(entry -> entry.getValue() == guild)
+                    .allMatch(entry -> Objects.equals(categories.get(entry.getKey()),
+                            other.categories.get(entry.getKey())));
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package pw.cryow0lf.sirduck;
+
+import discord4j.core.object.entity.Guild;
+import discord4j.core.object.entity.GuildChannel;
+
+import java.util.List;
+
+/**
+ * A feature which brings the channels of a guild in line with the cached state on startup, as run by the
+ * {@link ReconciliationEngine}.
+ */
+@FunctionalInterface
+interface GuildReconciler {
+
+    /**
+     * Rebuilds the state of the feature for the guild and plans all changes needed to make the guild consistent.
+     * No request to discord is made until the {@link ReconciliationPlan} is executed.
+     *
+     * @param guild    The {@link Guild} to be reconciled.
+     * @param channels All channels of the guild, as currently cached.
+     * @return The {@link ReconciliationPlan} with all needed changes.
+     */
+    ReconciliationPlan plan(Guild guild, List<GuildChannel> channels);
+}
@@ -0,0 +1,119 @@
+package pw.cryow0lf.sirduck;
+
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.util.Logger;
+import reactor.util.Loggers;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+/**
+ * This class processes requests one after another for the same key, while requests for different keys run in
+ * parallel.
+ * <p>
+ * A request submitted while another one for the same key is running is queued. Further requests submitted before the
+ * queued one started are merged into it, so a burst of events results in at most one more run. The handler therefore
+ * needs to act on the current state, not on the event which caused the request. A failed run is logged and counted,
+ * but does not affect the following runs.
+ *
+ * @param <K> The type of the key, e.g. the {@link discord4j.core.object.util.Snowflake} of a channel.
+ * @param <R> The type of the requests.
+ */
+final class KeyedSerializer<K, R> {
+    private static final Logger LOGGER = Loggers.getLogger(KeyedSerializer.class);
+
+    private final Map<K, Slot<R>> slots = new ConcurrentHashMap<>();
+    private final Function<R, ? extends Publisher<?>> handler;
+    private final BinaryOperator<R> merge;
+    private final Metrics.Counter failures;
+
+    /**
+     * @param handler  The {@link Function} handling a request.
+     * @param merge    The {@link BinaryOperator} merging a queued request with a newly submitted one.
+     * @param failures The {@link Metrics.Counter} of the failed runs.
+     */
+    KeyedSerializer(final Function<R, ? extends Publisher<?>> handler, final BinaryOperator<R> merge,
+                    final Metrics.Counter failures) {
+        this.handler = handler;
+        this.merge = merge;
+        this.failures = failures;
+    }
+
+    /**
+     * Submits a request. It is handled immediately, if no other request for the same key is running, else it is
+     * queued or merged into the already queued request. The request is submitted regardless of a subscription to the
+     * returned {@link Mono}.
+     *
+     * @param key     The key the request is serialized by.
+     * @param request The request to be handled.
+     * @return A {@link Mono} completing when the run handling the request finished, successful or not.
+     */
+    Mono<Void> submit(final K key, final R request) {
+        final Slot<R> created = new Slot<>(new Run<>(request));
+        final Run<?>[] joined = new Run<?>[1];
+        final Slot<R> slot = slots.compute(key, (k, current) -> {
+            if (current == null) {
+                joined[0] = created.running;
+                return created;
+            }
+            if (current.pending == null)
+                current.pending = new Run<>(request);
+            else
+                current.pending.request = merge.apply(current.pending.request, request);
+            joined[0] = current.pending;
+            return current;
+        });
+        if (slot == created)
+            run(key, created, created.running);
+        return joined[0].done;
+    }
+
+    private void run(final K key, final Slot<R> slot, final Run<R> run) {
+        Mono.defer(() -> Flux.from(handler.apply(run.request)).then())
+                .doOnError(throwable -> {
+                    failures.increment();
+                    LOGGER.warn("Failed to handle request for {}", key, throwable);
+                })
+                .onErrorResume(throwable -> Mono.empty())
+                .doFinally(signal -> {
+                    next(key, slot);
+                    run.done.onComplete();
+                })
+                .subscribe();
+    }
+
+    private void next(final K key, final Slot<R> slot) {
+        final Slot<R> current = slots.computeIfPresent(key, (k, s) -> s.pending == null ? null : s.advance());
+        if (current != null)
+            run(key, slot, current.running);
+    }
+
+    private static final class Slot<R> {
+        private Run<R> running;
+        private Run<R> pending;
+
+        private Slot(final Run<R> running) {
+            this.running = running;
+        }
+
+        private Slot<R> advance() {
+            running = pending;
+            pending = null;
+            return this;
+        }
+    }
+
+    private static final class Run<R> {
+        private final MonoProcessor<Void> done = MonoProcessor.create();
+        private R request;
+
+        private Run(final R request) {
+            this.request = request;
+        }
+    }
+}
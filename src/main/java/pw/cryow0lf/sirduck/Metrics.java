@@ -0,0 +1,434 @@
+package pw.cryow0lf.sirduck;
+
+import com.sun.net.httpserver.HttpServer;
+import discord4j.core.event.EventDispatcher;
+import discord4j.core.event.domain.Event;
+import org.reactivestreams.Publisher;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.util.Logger;
+import reactor.util.Loggers;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.InvalidAttributeValueException;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * This class collects the counters, gauges and latency histograms of the bot and exposes them over JMX and a local HTTP
+ * endpoint in the Prometheus text format.
+ * <p>
+ * A metric is identified by its name and labels and created on first use, so every shard can ask for the same metric
+ * and they all count into it. Recording never locks, as every value is a {@link LongAdder} or {@link DoubleAdder}.
+ * <p>
+ * The pipelines of the features are subscribed through {@link #subscribe(String, Flux, Consumer)}, which counts every
+ * error and resubscribes, instead of letting the pipeline stop silently. The handlers of the events run in a
+ * {@link KeyedSerializer}, which counts its failed runs into the errors of a pipeline of its own.
+ */
+final class Metrics {
+    private static final Logger LOGGER = Loggers.getLogger(Metrics.class);
+    private static final double[] BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    /**
+     * Returns the counter with the name and labels, creating it if needed.
+     *
+     * @param name   The name of the metric, e.g. {@code sirduck_channels_created_total}.
+     * @param help   The description of the metric.
+     * @param labels The names and values of the labels, alternating.
+     * @return The {@link Counter}.
+     */
+    Counter counter(final String name, final String help, final String... labels) {
+        return (Counter) family(name, help, "counter").series(labels, Counter::new);
+    }
+
+    /**
+     * Registers a gauge with the name and labels, whose value is read from the supplier whenever the metrics are
+     * exposed. If the gauge already exists, the existing supplier is kept.
+     *
+     * @param name   The name of the metric, e.g. {@code sirduck_queue_depth}.
+     * @param help   The description of the metric.
+     * @param value  The {@link DoubleSupplier} of the current value.
+     * @param labels The names and values of the labels, alternating.
+     */
+    void gauge(final String name, final String help, final DoubleSupplier value, final String... labels) {
+        family(name, help, "gauge").series(labels, () -> new Gauge(value));
+    }
+
+    /**
+     * Removes the series with the name and labels, e.g. a gauge whose supplier is not needed anymore, so it is not
+     * exposed anymore. A later use of the name and labels creates the series again.
+     *
+     * @param name   The name of the metric.
+     * @param labels The names and values of the labels, alternating.
+     */
+    void remove(final String name, final String... labels) {
+        final Family family = families.get(name);
+        if (family != null)
+            family.series.remove(Family.key(labels));
+    }
+
+    /**
+     * Returns the histogram with the name and labels, creating it if needed. The buckets are in seconds.
+     *
+     * @param name   The name of the metric, e.g. {@code sirduck_effect_latency_seconds}.
+     * @param help   The description of the metric.
+     * @param labels The names and values of the labels, alternating.
+     * @return The {@link Histogram}.
+     */
+    Histogram histogram(final String name, final String help, final String... labels) {
+        return (Histogram) family(name, help, "histogram").series(labels, Histogram::new);
+    }
+
+    /**
+     * Returns the counter of the errors of a pipeline, e.g. to count the failed runs of a {@link KeyedSerializer}.
+     *
+     * @param pipeline The name of the pipeline, used as label.
+     * @return The {@link Counter} of the errors.
+     */
+    Counter errors(final String pipeline) {
+        return counter("sirduck_pipeline_errors_total", "Errors which reached the end of a pipeline",
+                "pipeline", pipeline);
+    }
+
+    /**
+     * Subscribes to a pipeline, passing every element to the consumer. If the pipeline or the consumer fails, the
+     * error is logged and counted, and the pipeline is subscribed again.
+     *
+     * @param pipeline The name of the pipeline, used as label.
+     * @param flux     The {@link Flux} of the pipeline.
+     * @param consumer The {@link Consumer} of every element.
+     * @param <T>      The type of the elements.
+     * @return The {@link Disposable} of the subscription.
+     */
+    <T> Disposable subscribe(final String pipeline, final Flux<T> flux, final Consumer<? super T> consumer) {
+        final Counter errors = errors(pipeline);
+        final Counter restarts = counter("sirduck_pipeline_restarts_total", "Resubscriptions after an error",
+                "pipeline", pipeline);
+        return flux.doOnNext(consumer)
+                .doOnError(throwable -> {
+                    errors.increment();
+                    LOGGER.error("Pipeline {} failed, restarting", pipeline, throwable);
+                })
+                .retry(throwable -> {
+                    restarts.increment();
+                    return true;
+                })
+                .subscribe();
+    }
+
+    /**
+     * Counts every event of the dispatcher by its type, e.g. {@code VoiceStateUpdateEvent}.
+     *
+     * @param dispatcher The {@link EventDispatcher} to which the subscription is made.
+     */
+    void countEvents(final EventDispatcher dispatcher) {
+        final Map<Class<?>, Counter> counters = new ConcurrentHashMap<>();
+        subscribe("events", dispatcher.on(Event.class), event -> counters.computeIfAbsent(event.getClass(),
+                type -> counter("sirduck_events_total", "Gateway events received", "type", type.getSimpleName()))
+                .increment());
+    }
+
+    /**
+     * Returns all metrics in the Prometheus text format.
+     *
+     * @return The exposition of all metrics.
+     */
+    String scrape() {
+        final StringBuilder builder = new StringBuilder();
+        families.forEach((name, family) -> {
+            builder.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            builder.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            family.series.forEach((labels, metric) -> metric.write(builder, name, labels));
+        });
+        return builder.toString();
+    }
+
+    /**
+     * Starts a HTTP server answering every request to {@code /metrics} with {@link #scrape()}.
+     *
+     * @param address The {@link InetSocketAddress} to bind to.
+     * @return The started {@link HttpServer}.
+     * @throws IOException If the server could not be bound.
+     */
+    HttpServer serve(final InetSocketAddress address) throws IOException {
+        final HttpServer server = HttpServer.create(address, 0);
+        server.createContext("/metrics", exchange -> {
+            final byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (final OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * Registers all metrics as attributes of the MBean {@code pw.cryow0lf.sirduck:type=Metrics}. Histograms are
+     * exposed by their count and sum.
+     *
+     * @throws JMException If the MBean could not be registered.
+     */
+    void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(),
+                new ObjectName("pw.cryow0lf.sirduck:type=Metrics"));
+    }
+
+    private Family family(final String name, final String help, final String type) {
+        final Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+        if (!family.type.equals(type))
+            throw new IllegalArgumentException("Metric " + name + " is a " + family.type);
+        return family;
+    }
+
+    /**
+     * A counter, which only ever increases.
+     */
+    static final class Counter implements Metric {
+        private final LongAdder value = new LongAdder();
+
+        void increment() {
+            value.increment();
+        }
+
+        void add(final long delta) {
+            value.add(delta);
+        }
+
+        long get() {
+            return value.sum();
+        }
+
+        @Override
+        public void write(final StringBuilder builder, final String name, final String labels) {
+            builder.append(name).append(labels(labels, null)).append(' ').append(get()).append('\n');
+        }
+
+        @Override
+        public void attributes(final String name, final Map<String, Object> attributes) {
+            attributes.put(name, get());
+        }
+    }
+
+    /**
+     * A gauge, whose value is read when the metrics are exposed.
+     */
+    private static final class Gauge implements Metric {
+        private final DoubleSupplier value;
+
+        private Gauge(final DoubleSupplier value) {
+            this.value = value;
+        }
+
+        @Override
+        public void write(final StringBuilder builder, final String name, final String labels) {
+            builder.append(name).append(labels(labels, null)).append(' ').append(value.getAsDouble()).append('\n');
+        }
+
+        @Override
+        public void attributes(final String name, final Map<String, Object> attributes) {
+            attributes.put(name, value.getAsDouble());
+        }
+    }
+
+    /**
+     * A histogram of durations in seconds, with fixed buckets.
+     */
+    static final class Histogram implements Metric {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Histogram() {
+            for (int bucket = 0; bucket < buckets.length; bucket++)
+                buckets[bucket] = new LongAdder();
+        }
+
+        /**
+         * Records a duration.
+         *
+         * @param duration The {@link Duration} to be recorded.
+         */
+        void record(final Duration duration) {
+            final double seconds = duration.toNanos() / 1e9;
+            for (int bucket = 0; bucket < BUCKETS.length; bucket++) {
+                if (seconds <= BUCKETS[bucket]) {
+                    buckets[bucket].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sum.add(seconds);
+        }
+
+        /**
+         * Records the duration since the start.
+         *
+         * @param start The start as returned by {@link System#nanoTime()}.
+         */
+        void recordSince(final long start) {
+            record(Duration.ofNanos(System.nanoTime() - start));
+        }
+
+        /**
+         * Records the time from now until the {@link Flux} or {@link reactor.core.publisher.Mono} terminates. The
+         * publisher is subscribed for this.
+         *
+         * @param effect The {@link Publisher} of the effect.
+         */
+        void time(final Publisher<?> effect) {
+            final long start = System.nanoTime();
+            Flux.from(effect)
+                    .doFinally(signal -> recordSince(start))
+                    .subscribe(null, throwable -> {
+                    });
+        }
+
+        @Override
+        public void write(final StringBuilder builder, final String name, final String labels) {
+            long cumulative = 0;
+            for (int bucket = 0; bucket < BUCKETS.length; bucket++) {
+                cumulative += buckets[bucket].sum();
+                builder.append(name).append("_bucket").append(labels(labels, "le=\"" + BUCKETS[bucket] + '"'))
+                        .append(' ').append(cumulative).append('\n');
+            }
+            final long total = count.sum();
+            builder.append(name).append("_bucket").append(labels(labels, "le=\"+Inf\"")).append(' ').append(total)
+                    .append('\n');
+            builder.append(name).append("_sum").append(labels(labels, null)).append(' ').append(sum.sum())
+                    .append('\n');
+            builder.append(name).append("_count").append(labels(labels, null)).append(' ').append(total)
+                    .append('\n');
+        }
+
+        @Override
+        public void attributes(final String name, final Map<String, Object> attributes) {
+            attributes.put(name + "_count", count.sum());
+            attributes.put(name + "_sum", sum.sum());
+        }
+    }
+
+    private interface Metric {
+        void write(StringBuilder builder, String name, String labels);
+
+        void attributes(String name, Map<String, Object> attributes);
+    }
+
+    private static String labels(final String labels, final String extra) {
+        if (extra == null)
+            return labels.isEmpty() ? "" : '{' + labels + '}';
+        return '{' + (labels.isEmpty() ? extra : labels + ',' + extra) + '}';
+    }
+
+    private static final class Family {
+        private final String help;
+        private final String type;
+        private final Map<String, Metric> series = new ConcurrentSkipListMap<>();
+
+        private Family(final String help, final String type) {
+            this.help = help;
+            this.type = type;
+        }
+
+        private Metric series(final String[] labels, final Supplier<Metric> factory) {
+            return series.computeIfAbsent(key(labels), k -> factory.get());
+        }
+
+        private static String key(final String[] labels) {
+            if (labels.length % 2 != 0)
+                throw new IllegalArgumentException("Labels need to be pairs of name and value");
+            final StringBuilder key = new StringBuilder();
+            for (int label = 0; label < labels.length; label += 2) {
+                if (key.length() > 0)
+                    key.append(',');
+                key.append(labels[label]).append("=\"").append(labels[label + 1].replace("\\", "\\\\")
+                        .replace("\"", "\\\"")).append('"');
+            }
+            return key.toString();
+        }
+    }
+
+    /**
+     * Exposes every series as a read-only attribute, named like in the Prometheus format.
+     */
+    private final class MetricsMBean implements DynamicMBean {
+        private Map<String, Object> attributes() {
+            final Map<String, Object> attributes = new ConcurrentHashMap<>();
+            families.forEach((name, family) -> family.series.forEach((labels, metric) ->
+                    metric.attributes(name + labels(labels, null), attributes)));
+            return attributes;
+        }
+
+        @Override
+        public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+            final Object value = attributes().get(attribute);
+            if (value == null)
+                throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public void setAttribute(final Attribute attribute) throws AttributeNotFoundException,
+                InvalidAttributeValueException {
+            if (!attributes().containsKey(attribute.getName()))
+                throw new AttributeNotFoundException(attribute.getName());
+            throw new InvalidAttributeValueException("Metric " + attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(final String[] names) {
+            final Map<String, Object> attributes = attributes();
+            final AttributeList list = new AttributeList();
+            for (final String name : names) {
+                if (attributes.containsKey(name))
+                    list.add(new Attribute(name, attributes.get(name)));
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(final AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(final String actionName, final Object[] params, final String[] signature)
+                throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName), "Metrics have no operations");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            final MBeanAttributeInfo[] infos = attributes().entrySet()
+                    .stream()
+                    .sorted(Map.Entry.comparingByKey())
+                    .map(entry -> new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                            entry.getKey(), true, false, false))
+                    .toArray(MBeanAttributeInfo[]::new);
+            return new MBeanInfo(Metrics.class.getName(), "Metrics of the bot", infos, null, null, null);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package pw.cryow0lf.sirduck;
+
+import discord4j.core.object.entity.CategorizableChannel;
+import discord4j.core.object.entity.Channel;
+import discord4j.core.object.entity.Guild;
+import discord4j.core.object.entity.GuildChannel;
+import discord4j.core.object.entity.TextChannel;
+import discord4j.core.object.entity.VoiceChannel;
+import discord4j.core.object.util.Snowflake;
+import discord4j.rest.json.request.PositionModifyRequest;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * This class keeps the channels of a category in their intended order, after the features created channels in it.
+ * <p>
+ * Created channels get no position, as any position would collide with an existing channel and make discord shift
+ * and update every sibling. Instead, the order of the whole category is planned and applied with a single bulk
+ * request. Discord orders the text and the voice channels of a category separately, so both are planned on their
+ * own: The text channels which are not temporary keep their order at the top, followed by the temporary text
+ * channels in the order of their voice channels. The voice channels keep their order as well, except that the
+ * channels of a talk family are grouped in numeric order at the place of their first channel.
+ * <p>
+ * Only channels out of their planned order are moved, so an order arranged by hand is kept wherever it does not
+ * conflict: The longest sequence of channels already in planned order keeps its positions, every other channel is
+ * moved directly behind its planned predecessor. A following channel only moves as well if no position is left.
+ * <p>
+ * Requests for the same category within a short window are merged and planned once, through a
+ * {@link KeyedSerializer}. The request is only sent if the order changed, and only contains the channels which move.
+ */
+final class PositionPlanner {
+    private static final Duration WINDOW = Duration.ofMillis(250);
+    private static final Comparator<GuildChannel> CURRENT_ORDER =
+            Comparator.comparingInt(GuildChannel::getRawPosition).thenComparing(GuildChannel::getId);
+
+    private final KeyedSerializer<Snowflake, CategorizableChannel> arrangements;
+    private final FeatureConfig config;
+    private final TemporaryChannelIndex temporaryChannels;
+    private final ActionQueue actions;
+    private final Metrics.Counter requests;
+    private final Metrics.Counter moved;
+
+    /**
+     * @param config            The {@link FeatureConfig} providing the talk channel pattern of every category.
+     * @param temporaryChannels The {@link TemporaryChannelIndex} to find the temporary text channels.
+     * @param actions           The {@link ActionQueue} the position requests are submitted to.
+     * @param metrics           The {@link Metrics} to record the position requests into.
+     */
+    PositionPlanner(final FeatureConfig config, final TemporaryChannelIndex temporaryChannels,
+                    final ActionQueue actions, final Metrics metrics) {
+        this.config = config;
+        this.temporaryChannels = temporaryChannels;
+        this.actions = actions;
+        this.arrangements = new KeyedSerializer<>(this::arrange, (queued, submitted) -> submitted,
+                metrics.errors("position_arrange"));
+        this.requests = metrics.counter("sirduck_position_requests_total", "Bulk channel position requests sent");
+        this.moved = metrics.counter("sirduck_position_moves_total", "Channels moved by position requests");
+    }
+
+    /**
+     * Submits a request to arrange the category of the channel. Channels without category are arranged with all other
+     * channels without category.
+     *
+     * @param channel A {@link CategorizableChannel} of the category, e.g. a newly created one.
+     * @return A {@link Mono} completing when the category was arranged.
+     */
+    Mono<Void> submit(final CategorizableChannel channel) {
+        return arrangements.submit(channel.getCategoryId().orElse(channel.getGuildId()), channel);
+    }
+
+    /**
+     * Requests to plan the order of the category of the channel, after waiting for further requests for a short
+     * window, and to apply it if it changed.
+     *
+     * @param channel A {@link CategorizableChannel} of the category.
+     * @return A {@link Mono} completing when the category is arranged.
+     */
+    private Mono<Void> arrange(final CategorizableChannel channel) {
+        final Optional<Snowflake> category = channel.getCategoryId();
+        return Mono.delay(WINDOW)
+                .then(channel.getGuild())
+                .flatMapMany(Guild::getChannels)
+                .filter(sibling -> sibling.getType() == Channel.Type.GUILD_TEXT
+                        || sibling.getType() == Channel.Type.GUILD_VOICE)
+                .cast(CategorizableChannel.class)
+                .filter(sibling -> sibling.getCategoryId().equals(category))
+                .collectList()
+                .map(siblings -> plan(channel.getGuildId(), config.settings(channel), siblings))
+                .filter(positions -> positions.length > 0)
+                .flatMap(positions -> actions.submit(channel.getGuildId(), ActionQueue.Priority.POSITION, () ->
+                        channel.getClient().getServiceMediator().getRestClient().getGuildService()
+                                .modifyGuildChannelPositions(channel.getGuildId().asLong(), positions)
+                                .doOnSuccess(ignored -> {
+                                    requests.increment();
+                                    moved.add(positions.length);
+                                })
+                ));
+    }
+
+    /**
+     * Plans the order of the text and the voice channels of a category, as described in the class documentation.
+     *
+     * @param guild    The {@link Snowflake} of the guild.
+     * @param settings The {@link FeatureConfig.Settings} of the category.
+     * @param channels All text and voice channels of the category.
+     * @return The positions of all channels which need to move, or an empty array if the order did not change.
+     */
+    private PositionModifyRequest[] plan(final Snowflake guild, final FeatureConfig.Settings settings,
+                                         final List<CategorizableChannel> channels) {
+        final List<CategorizableChannel> current = new ArrayList<>(channels);
+        current.sort(CURRENT_ORDER);
+
+        final List<VoiceChannel> voiceChannels = current.stream()
+                .filter(VoiceChannel.class::isInstance)
+                .map(VoiceChannel.class::cast)
+                .collect(Collectors.toList());
+        final Map<Snowflake, TextChannel> textChannels = current.stream()
+                .filter(TextChannel.class::isInstance)
+                .map(TextChannel.class::cast)
+                .collect(Collectors.toMap(TextChannel::getId, text -> text));
+        final Map<Snowflake, TextChannel> temporary = new HashMap<>();
+        voiceChannels.forEach(voice -> temporaryChannels.textChannelId(guild, voice.getId())
+                .map(textChannels::get)
+                .ifPresent(text -> temporary.put(voice.getId(), text)));
+        final Set<Snowflake> temporaryIds = temporary.values().stream()
+                .map(TextChannel::getId)
+                .collect(Collectors.toSet());
+
+        final List<VoiceChannel> plannedVoiceChannels = orderVoiceChannels(voiceChannels, settings);
+        final List<TextChannel> plannedTextChannels = new ArrayList<>();
+        textChannels.values().stream()
+                .filter(text -> !temporaryIds.contains(text.getId()))
+                .sorted(CURRENT_ORDER)
+                .forEach(plannedTextChannels::add);
+        plannedVoiceChannels.forEach(voice -> Optional.ofNullable(temporary.get(voice.getId()))
+                .ifPresent(plannedTextChannels::add));
+
+        final List<PositionModifyRequest> positions = new ArrayList<>();
+        move(plannedTextChannels, positions);
+        move(plannedVoiceChannels, positions);
+        return positions.toArray(new PositionModifyRequest[0]);
+    }
+
+    /**
+     * Plans the positions of channels of the same type, so that discord shows them in the planned order. Discord
+     * sorts them by position and then by id. The longest sequence of channels already in planned order keeps its
+     * positions. Every other channel is moved directly behind its planned predecessor, sharing its position if its id
+     * sorts after it, else at the next position. A following channel of the sequence is moved as well, if it would not
+     * sort after the moved channel anymore.
+     *
+     * @param planned   The channels of one type in their planned order.
+     * @param positions The {@link List} to add a {@link PositionModifyRequest} for every moved channel to.
+     */
+    private static void move(final List<? extends GuildChannel> planned, final List<PositionModifyRequest> positions) {
+        if (planned.isEmpty())
+            return;
+        final boolean[] kept = longestInOrder(planned);
+        int previousPosition = planned.stream().mapToInt(GuildChannel::getRawPosition).min().orElseThrow();
+        Snowflake previousId = null;
+        for (int index = 0; index < planned.size(); index++) {
+            final GuildChannel channel = planned.get(index);
+            final int position = channel.getRawPosition();
+            if (kept[index] && (previousId == null || position > previousPosition
+                    || position == previousPosition && channel.getId().compareTo(previousId) > 0)) {
+                previousPosition = position;
+            } else {
+                if (previousId != null && channel.getId().compareTo(previousId) < 0)
+                    previousPosition++;
+                if (position != previousPosition)
+                    positions.add(new PositionModifyRequest(channel.getId().asLong(), previousPosition));
+            }
+            previousId = channel.getId();
+        }
+    }
+
+    /**
+     * Finds the longest sequence of channels, whose current order matches their planned order.
+     *
+     * @param planned The channels of one type in their planned order.
+     * @return For every planned channel, whether it is part of the sequence.
+     */
+    private static boolean[] longestInOrder(final List<? extends GuildChannel> planned) {
+        final int[] length = new int[planned.size()];
+        final int[] previous = new int[planned.size()];
+        int last = 0;
+        for (int index = 0; index < planned.size(); index++) {
+            length[index] = 1;
+            previous[index] = -1;
+            for (int before = 0; before < index; before++) {
+                if (CURRENT_ORDER.compare(planned.get(before), planned.get(index)) < 0
+                        && length[before] + 1 > length[index]) {
+                    length[index] = length[before] + 1;
+                    previous[index] = before;
+                }
+            }
+            if (length[index] > length[last])
+                last = index;
+        }
+        final boolean[] kept = new boolean[planned.size()];
+        for (int index = last; index >= 0; index = previous[index])
+            kept[index] = true;
+        return kept;
+    }
+
+    /**
+     * Orders the voice channels by their current order, but groups the channels of every talk family in numeric
+     * order at the place of its first channel. If talk families are disabled for the category, the order is kept.
+     *
+     * @param voiceChannels The {@link VoiceChannel}s of a category in their current order.
+     * @param settings      The {@link FeatureConfig.Settings} of the category.
+     * @return The {@link VoiceChannel}s in their planned order.
+     */
+    private static List<VoiceChannel> orderVoiceChannels(final List<VoiceChannel> voiceChannels,
+                                                         final FeatureConfig.Settings settings) {
+        if (!settings.isAdditionalTalkEnabled())
+            return voiceChannels;
+        final Map<String, TreeMap<Integer, List<VoiceChannel>>> families = new HashMap<>();
+        voiceChannels.forEach(voice -> TalkChannelName.parse(voice.getName(), settings.getFamilyPattern())
+                .ifPresent(name -> families.computeIfAbsent(name.getTopic(), topic -> new TreeMap<>())
+                        .computeIfAbsent(name.getNumber(), number -> new ArrayList<>())
+                        .add(voice)));
+
+        final List<VoiceChannel> ordered = new ArrayList<>(voiceChannels.size());
+        final Set<String> placed = new HashSet<>();
+        for (final VoiceChannel voice : voiceChannels) {
+            final Optional<TalkChannelName> name = TalkChannelName.parse(voice.getName(), settings.getFamilyPattern());
+            if (name.isEmpty())
+                ordered.add(voice);
+            else if (placed.add(name.get().getTopic()))
+                families.get(name.get().getTopic()).values().forEach(ordered::addAll);
+        }
+        return ordered;
+    }
+}
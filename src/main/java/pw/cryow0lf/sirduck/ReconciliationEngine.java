@@ -0,0 +1,181 @@
+package pw.cryow0lf.sirduck;
+
+import discord4j.core.event.EventDispatcher;
+import discord4j.core.event.domain.lifecycle.ReadyEvent;
+import discord4j.core.object.entity.Guild;
+import reactor.core.publisher.Mono;
+import reactor.util.Logger;
+import reactor.util.Loggers;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class reconciles every guild once it becomes available, e.g. after the bot connected.
+ * <p>
+ * For each guild, the channels are read from the cache once and every {@link GuildReconciler} rebuilds its index and
+ * plans the needed changes from them, without any request to discord. This happens immediately for every guild,
+ * without any bound, so the features never fall back to scanning a guild and never trust a stale snapshot of it. Only
+ * the execution of the plans is limited to a number of guilds at the same time, so a reconnect to many guilds does
+ * not cause a storm of requests. Plans waiting for their execution are buffered, so they never hold back the guilds
+ * for other subscribers.
+ * <p>
+ * The time from a guild becoming available until it was consistent is logged for every guild, and the total time
+ * once every guild of the {@link ReadyEvent} was reconciled or failed to. Guilds joined later do not count towards
+ * the total. Every time is recorded in the {@link Metrics} as well.
+ * <p>
+ * After the plans of a guild were executed, the tracked {@link VoiceOccupancy} of its voice channels is compared to
+ * the voice states in the store. Every voice channel which drifted is logged and counted, as it would make the
+ * features create or delete channels for the wrong occupancy. A user moving during the check may be counted as well.
+ */
+final class ReconciliationEngine {
+    private static final Logger LOGGER = Loggers.getLogger(ReconciliationEngine.class);
+
+    private final VoiceOccupancy occupancy;
+    private final List<GuildReconciler> reconcilers;
+    private final Metrics.Histogram durations;
+    private final Metrics.Counter failures;
+    private final Metrics.Counter drifted;
+    private final Set<Long> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger remaining = new AtomicInteger();
+    private final AtomicInteger consistentGuilds = new AtomicInteger();
+    private final AtomicInteger failedGuilds = new AtomicInteger();
+    private volatile int expected;
+    private volatile long started = System.nanoTime();
+
+    /**
+     * Subscribes to the events to reconcile the guilds.
+     *
+     * @param dispatcher  The {@link EventDispatcher} to which the subscriptions are made.
+     * @param occupancy   The {@link VoiceOccupancy} providing the guilds and checked after every reconciliation.
+     * @param concurrency The maximum number of guilds whose plans are executed at the same time.
+     * @param reconcilers The {@link GuildReconciler}s planning the changes.
+     * @param metrics     The {@link Metrics} to record the reconciliations into.
+     */
+    ReconciliationEngine(final EventDispatcher dispatcher, final VoiceOccupancy occupancy, final int concurrency,
+                         final List<GuildReconciler> reconcilers, final Metrics metrics) {
+        this.occupancy = occupancy;
+        this.reconcilers = reconcilers;
+        this.durations = metrics.histogram("sirduck_reconciliation_seconds",
+                "Time until a guild was consistent after it became available");
+        this.failures = metrics.counter("sirduck_reconciliation_failures_total", "Guilds which failed to reconcile");
+        this.drifted = metrics.counter("sirduck_occupancy_drift_total",
+                "Voice channels whose tracked occupancy did not match the store after a reconciliation");
+
+        metrics.subscribe("reconciliation_ready", dispatcher.on(ReadyEvent.class), event -> {
+            started = System.nanoTime();
+            consistentGuilds.set(0);
+            failedGuilds.set(0);
+            pending.clear();
+            event.getGuilds().forEach(guild -> pending.add(guild.getId().asLong()));
+            expected = pending.size();
+            remaining.set(expected);
+        });
+
+        metrics.subscribe("reconciliation", occupancy.guilds()
+                .flatMap(this::plan)
+                .onBackpressureBuffer()
+                .flatMap(this::execute, concurrency), ignored -> {
+        });
+    }
+
+    /**
+     * Requests the channels of the guild from the cache, to rebuild the indexes of all features and plan the changes
+     * needed to make the guild consistent.
+     *
+     * @param guild The {@link Guild} to be planned.
+     * @return A {@link Mono} emitting the {@link Planned} guild.
+     */
+    private Mono<Planned> plan(final Guild guild) {
+        final long start = System.nanoTime();
+        return guild.getChannels()
+                .collectList()
+                .map(channels -> new Planned(guild, start, reconcilers.stream()
+                        .map(reconciler -> reconciler.plan(guild, channels))
+                        .reduce(new ReconciliationPlan(), ReconciliationPlan::addAll)
+                ))
+                .doOnError(throwable -> failed(guild, throwable))
+                .onErrorResume(throwable -> Mono.empty());
+    }
+
+    /**
+     * Requests all changes planned for a guild, and then checks the occupancy of the guild.
+     *
+     * @param planned The {@link Planned} guild.
+     * @return A {@link Mono} completing when the guild is consistent and its occupancy was checked.
+     */
+    private Mono<Void> execute(final Planned planned) {
+        return planned.plan.execute()
+                .doOnSuccess(ignored -> report(planned, Duration.ofNanos(System.nanoTime() - planned.start)))
+                .doOnError(throwable -> failed(planned.guild, throwable))
+                .onErrorResume(throwable -> Mono.empty())
+                .then(checkOccupancy(planned.guild));
+    }
+
+    /**
+     * Requests the voice channels of the guild whose tracked occupancy drifted from the store, to log and count them.
+     *
+     * @param guild The {@link Guild} to be checked.
+     * @return A {@link Mono} completing when the guild was checked.
+     */
+    private Mono<Void> checkOccupancy(final Guild guild) {
+        return occupancy.drift(guild)
+                .doOnNext(channel -> {
+                    drifted.increment();
+                    LOGGER.warn("Tracked occupancy of voice channel {} in guild {} drifted from the store",
+                            channel.getId().asString(), guild.getId().asString());
+                })
+                .then()
+                .onErrorResume(throwable -> {
+                    LOGGER.warn("Failed to check the occupancy of guild {}", guild.getId().asString(), throwable);
+                    return Mono.empty();
+                });
+    }
+
+    private void failed(final Guild guild, final Throwable throwable) {
+        failures.increment();
+        LOGGER.warn("Failed to reconcile guild {}", guild.getId().asString(), throwable);
+        finished(guild, failedGuilds);
+    }
+
+    private void report(final Planned planned, final Duration duration) {
+        final ReconciliationPlan plan = planned.plan;
+        durations.record(duration);
+        LOGGER.info("Guild {} consistent after {} ms ({} created, {} deleted, {} permissions updated)",
+                planned.guild.getId().asString(), duration.toMillis(), plan.count(ReconciliationPlan.Kind.CREATE),
+                plan.count(ReconciliationPlan.Kind.DELETE), plan.count(ReconciliationPlan.Kind.PERMISSION));
+        finished(planned.guild, consistentGuilds);
+    }
+
+    /**
+     * Counts a guild of the {@link ReadyEvent} as finished and logs the total time, once all of them finished.
+     * Guilds which are not part of the {@link ReadyEvent} are ignored.
+     *
+     * @param guild   The finished {@link Guild}.
+     * @param outcome The counter of the outcome, either {@link #consistentGuilds} or {@link #failedGuilds}.
+     */
+    private void finished(final Guild guild, final AtomicInteger outcome) {
+        if (!pending.remove(guild.getId().asLong()))
+            return;
+        outcome.incrementAndGet();
+        if (remaining.decrementAndGet() == 0)
+            LOGGER.info("All {} guilds reconciled after {} ms ({} consistent, {} failed)", expected,
+                    Duration.ofNanos(System.nanoTime() - started).toMillis(), consistentGuilds.get(),
+                    failedGuilds.get());
+    }
+
+    private static final class Planned {
+        private final Guild guild;
+        private final long start;
+        private final ReconciliationPlan plan;
+
+        private Planned(final Guild guild, final long start, final ReconciliationPlan plan) {
+            this.guild = guild;
+            this.start = start;
+            this.plan = plan;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package pw.cryow0lf.sirduck;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A plan of all changes needed to make a guild consistent, as created by a {@link GuildReconciler}.
+ * <p>
+ * The plan records every planned change with its {@link Kind} for reporting, and the actions making these changes.
+ * A single action may make several changes, e.g. one reconciliation of a talk channel family creating one channel
+ * and deleting others.
+ */
+final class ReconciliationPlan {
+    private final Map<Kind, List<String>> changes = new EnumMap<>(Kind.class);
+    private final List<Supplier<Mono<Void>>> actions = new ArrayList<>();
+
+    /**
+     * Records a planned change.
+     *
+     * @param kind   The {@link Kind} of the change.
+     * @param target A description of the changed channel, e.g. its name.
+     * @return This plan.
+     */
+    ReconciliationPlan change(final Kind kind, final String target) {
+        changes.computeIfAbsent(kind, k -> new ArrayList<>()).add(target);
+        return this;
+    }
+
+    /**
+     * Adds an action making some of the recorded changes.
+     *
+     * @param action The {@link Supplier} of the {@link Mono} requesting the changes.
+     * @return This plan.
+     */
+    ReconciliationPlan action(final Supplier<Mono<Void>> action) {
+        actions.add(action);
+        return this;
+    }
+
+    /**
+     * Adds all changes and actions of another plan to this plan.
+     *
+     * @param plan The {@link ReconciliationPlan} to be added.
+     * @return This plan.
+     */
+    ReconciliationPlan addAll(final ReconciliationPlan plan) {
+        plan.changes.forEach((kind, targets) -> changes.computeIfAbsent(kind, k -> new ArrayList<>()).addAll(targets));
+        actions.addAll(plan.actions);
+        return this;
+    }
+
+    /**
+     * Returns the number of planned changes of a {@link Kind}.
+     *
+     * @param kind The {@link Kind} of the changes.
+     * @return The number of planned changes.
+     */
+    int count(final Kind kind) {
+        return changes.getOrDefault(kind, List.of()).size();
+    }
+
+    /**
+     * Returns a boolean indicating if no changes are planned.
+     *
+     * @return {@code true} if the guild is already consistent.
+     */
+    boolean isEmpty() {
+        return changes.isEmpty() && actions.isEmpty();
+    }
+
+    /**
+     * Requests all actions of the plan, running at the same time.
+     *
+     * @return A {@link Mono} completing when all actions finished.
+     */
+    Mono<Void> execute() {
+        return Flux.fromIterable(actions)
+                .flatMap(Supplier::get)
+                .then();
+    }
+
+    @Override
+    public String toString() {
+        return "ReconciliationPlan{" +
+                "changes=" + changes +
+                ", actions=" + actions.size() +
+                '}';
+    }
+
+    /**
+     * The kind of a planned change.
+     */
+    enum Kind {
+        CREATE,
+        DELETE,
+        PERMISSION
+    }
+}
@@ -1,25 +1,244 @@
 package pw.cryow0lf.sirduck;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import discord4j.core.DiscordClient;
+import discord4j.core.DiscordClientBuilder;
+import discord4j.core.object.data.stored.MemberBean;
+import discord4j.core.object.data.stored.MessageBean;
+import discord4j.core.object.data.stored.PresenceBean;
+import discord4j.core.object.data.stored.RoleBean;
+import discord4j.core.object.data.stored.UserBean;
+import discord4j.store.api.mapping.MappingStoreService;
+import discord4j.store.api.noop.NoOpStoreService;
+import discord4j.store.api.service.StoreService;
+import discord4j.store.jdk.JdkStoreService;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.management.JMException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
 
 public final class SirDuck {
+    private static final Duration GRACE_PERIOD = Duration.parse(System.getProperty("sirduck.gracePeriod", "PT1S"));
+    private static final int SPARE_CHANNELS = Integer.getInteger("sirduck.spareChannels", 1);
+    private static final int QUEUE_CAPACITY = Integer.getInteger("sirduck.queueCapacity", 256);
+    private static final int QUEUE_CONCURRENCY = Integer.getInteger("sirduck.queueConcurrency", 2);
+    private static final int STARTUP_CONCURRENCY = Integer.getInteger("sirduck.startupConcurrency", 4);
+    private static final Path SNAPSHOT = Paths.get(System.getProperty("sirduck.snapshot", "sirduck.snapshot"));
+    private static final Duration SNAPSHOT_INTERVAL =
+            Duration.parse(System.getProperty("sirduck.snapshotInterval", "PT1M"));
+    private static final Duration SHARD_LOGIN_DELAY =
+            Duration.parse(System.getProperty("sirduck.shardLoginDelay", "PT5.5S"));
+    private static final Path CONFIG = Paths.get(System.getProperty("sirduck.config", "sirduck.properties"));
+    private static final String ARCHIVE = System.getProperty("sirduck.archive");
+    private static final boolean LEAN_STORES = Boolean.parseBoolean(System.getProperty("sirduck.leanStores", "true"));
+    private static final String METRICS_ADDRESS = System.getProperty("sirduck.metricsAddress", "127.0.0.1");
+    private static final Integer METRICS_PORT = Integer.getInteger("sirduck.metricsPort");
+    private static final URI GATEWAY_BOT = URI.create("https://discordapp.com/api/v6/gateway/bot");
 
     /**
-     * Starts the bot by building the discord client, registering the events, connecting to the discord gateway and
-     * then blocking indefinitely.
+     * Starts the bot by building a discord client for every shard of this process, registering the events,
+     * connecting to the discord gateway and then blocking indefinitely. The grace period before unused channels are
+     * deleted can be set by the system property {@code sirduck.gracePeriod} as ISO-8601 duration, e.g. {@code PT5S}.
+     * The number of empty channels every talk family keeps ready can be raised above {@code 1} by
+     * {@code sirduck.spareChannels}. Both are defaults, which the file {@code sirduck.config} can override per guild
+     * and category, as described by {@link FeatureConfig}. The file is reloaded whenever it changes.
+     * The number of queued and running REST actions per guild can be set by {@code sirduck.queueCapacity} and
+     * {@code sirduck.queueConcurrency}, the number of guilds reconciled at the same time after connecting by
+     * {@code sirduck.startupConcurrency}. The known channels are persisted to the file {@code sirduck.snapshot} every
+     * {@code sirduck.snapshotInterval} and on shutdown, and restored from it on start. If {@code sirduck.archive} is
+     * set to a directory, the messages of every temporary text channel are archived there before it is deleted.
+     * <p>
+     * The shard count is either a number or {@code auto}, which uses the count recommended by discord. By default,
+     * this process runs all shards, else only the shards of the range, e.g. {@code 0-3}. Every shard has its own
+     * client, state and pipelines, so shards never share locks. The logins are staggered by
+     * {@code sirduck.shardLoginDelay}, as discord only allows one identify every five seconds.
+     * <p>
+     * Unless {@code sirduck.leanStores} is {@code false}, messages, presences, members, users and roles are not
+     * cached at all, as the bot only reads channels and voice states.
+     * <p>
+     * The metrics of all shards are registered as the MBean {@code pw.cryow0lf.sirduck:type=Metrics}. If
+     * {@code sirduck.metricsPort} is set, they are also served in the Prometheus text format at {@code /metrics},
+     * bound to {@code sirduck.metricsAddress}, which is {@code 127.0.0.1} by default.
      *
-     * @param args start arguments, where the first element should be a valid discord bot token
+     * @param args start arguments, where the first element should be a valid discord bot token, followed by the
+     *             optional shard count and range
      */
     public static void main(final String[] args) {
-        if (args.length != 1) {
-            System.out.println("Usage: java -jar SirRobot.jar <bottoken>");
+        if (args.length < 1 || args.length > 3) {
+            System.out.println("Usage: java -jar SirRobot.jar <bottoken> [<shardcount>|auto [<from>-<to>]]");
             System.exit(1);
         }
 
-        final DiscordClient client = DiscordClient.create(args[0]);
+        final String token = args[0];
+        final int shardCount = args.length < 2 ? 1 : shardCount(token, args[1]);
+        final int[] range = args.length < 3 ? new int[]{0, shardCount - 1} : shardRange(args[2], shardCount);
+        final Metrics metrics = startMetrics();
+        final FeatureConfig config = startConfig();
+
+        Flux.range(range[0], range[1] - range[0] + 1)
+                .map(shard -> createShard(token, shard, shardCount, config, metrics))
+                .index()
+                .flatMap(shard -> Mono.delay(SHARD_LOGIN_DELAY.multipliedBy(shard.getT1()))
+                        .then(shard.getT2().login()))
+                .blockLast();
+    }
 
-        new TemporaryTextChannels(client.getEventDispatcher());
-        new AdditionalTalkChannels(client.getEventDispatcher());
-        client.login().block();
+    /**
+     * Builds the discord client of a shard and registers all features with their own state.
+     *
+     * @param token      The discord bot token.
+     * @param shardIndex The index of the shard.
+     * @param shardCount The total number of shards.
+     * @param config     The {@link FeatureConfig} shared by all shards.
+     * @param metrics    The {@link Metrics} shared by all shards.
+     * @return The {@link DiscordClient} of the shard, not logged in yet.
+     */
+    private static DiscordClient createShard(final String token, final int shardIndex, final int shardCount,
+                                             final FeatureConfig config, final Metrics metrics) {
+        final DiscordClientBuilder builder = new DiscordClientBuilder(token)
+                .setShardIndex(shardIndex)
+                .setShardCount(shardCount);
+        if (LEAN_STORES)
+            builder.setStoreService(leanStoreService());
+        final DiscordClient client = builder.build();
+        metrics.countEvents(client.getEventDispatcher());
+
+        final VoiceOccupancy occupancy = new VoiceOccupancy(client.getEventDispatcher());
+        final ActionQueue actions = new ActionQueue(QUEUE_CAPACITY, QUEUE_CONCURRENCY, metrics);
+        final TemporaryChannelIndex temporaryChannelIndex = new TemporaryChannelIndex();
+        final TalkChannelFamilies talkChannelFamilies = new TalkChannelFamilies();
+        final StateSnapshot snapshot = new StateSnapshot(shardCount == 1 ? SNAPSHOT :
+                SNAPSHOT.resolveSibling(SNAPSHOT.getFileName() + "." + shardIndex),
+                temporaryChannelIndex, talkChannelFamilies);
+        snapshot.load();
+        snapshot.schedule(SNAPSHOT_INTERVAL);
+
+        final PositionPlanner positions = new PositionPlanner(config, temporaryChannelIndex, actions, metrics);
+        final TemporaryTextChannels temporaryTextChannels = new TemporaryTextChannels(client.getEventDispatcher(),
+                occupancy, actions, temporaryChannelIndex, config,
+                ARCHIVE == null ? null : new ChannelArchive(Paths.get(ARCHIVE), metrics), positions, metrics);
+        final AdditionalTalkChannels additionalTalkChannels = new AdditionalTalkChannels(client.getEventDispatcher(),
+                occupancy, actions, talkChannelFamilies, config, positions, metrics);
+        new ReconciliationEngine(client.getEventDispatcher(), occupancy, STARTUP_CONCURRENCY,
+                List.of(temporaryTextChannels, additionalTalkChannels), metrics);
+        new StoreFootprint(occupancy, metrics);
+        return client;
+    }
+
+    /**
+     * Creates the {@link FeatureConfig} of this process, with the system properties as defaults, and watches the
+     * configuration file.
+     *
+     * @return The {@link FeatureConfig} to be shared by all shards.
+     */
+    private static FeatureConfig startConfig() {
+        final FeatureConfig config = new FeatureConfig(new FeatureConfig.Settings(true, true, GRACE_PERIOD,
+                SPARE_CHANNELS, 0, null));
+        try {
+            config.watch(CONFIG);
+        } catch (final IOException e) {
+            throw new IllegalStateException("Failed to watch feature configuration " + CONFIG, e);
+        }
+        return config;
+    }
+
+    /**
+     * Creates the {@link Metrics} of this process, registers them as MBean and serves them over HTTP, if
+     * {@code sirduck.metricsPort} is set.
+     *
+     * @return The {@link Metrics} to be shared by all shards.
+     */
+    private static Metrics startMetrics() {
+        final Metrics metrics = new Metrics();
+        try {
+            metrics.registerMBean();
+            if (METRICS_PORT != null)
+                metrics.serve(new InetSocketAddress(METRICS_ADDRESS, METRICS_PORT));
+        } catch (final JMException | IOException e) {
+            throw new IllegalStateException("Failed to expose metrics", e);
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns a {@link StoreService} which drops all messages, presences, members, users and roles and keeps
+     * everything else, like guilds, channels and voice states, in memory. The overwrite hiding a temporary text
+     * channel from everyone only needs the id of the guild, not its role.
+     *
+     * @return The {@link StoreService} to be used by the clients.
+     */
+    private static StoreService leanStoreService() {
+        return MappingStoreService.create()
+                .setMapping(new NoOpStoreService(), MessageBean.class, PresenceBean.class, MemberBean.class,
+                        UserBean.class, RoleBean.class)
+                .setFallback(new JdkStoreService());
+    }
+
+    /**
+     * Parses the shard count argument. If it is {@code auto}, the recommended count is requested from discord.
+     *
+     * @param token    The discord bot token.
+     * @param argument The shard count argument.
+     * @return The total number of shards.
+     */
+    private static int shardCount(final String token, final String argument) {
+        if (argument.equalsIgnoreCase("auto"))
+            return recommendedShardCount(token);
+        final int count = Integer.parseInt(argument);
+        if (count < 1)
+            throw new IllegalArgumentException("Shard count must be positive: " + argument);
+        return count;
+    }
+
+    /**
+     * Parses the shard range argument, like {@code 0-3} or {@code 2}.
+     *
+     * @param argument   The shard range argument.
+     * @param shardCount The total number of shards.
+     * @return An array with the first and last shard index, both inclusive.
+     */
+    private static int[] shardRange(final String argument, final int shardCount) {
+        final int separator = argument.indexOf('-');
+        final int from = Integer.parseInt(separator < 0 ? argument : argument.substring(0, separator));
+        final int to = separator < 0 ? from : Integer.parseInt(argument.substring(separator + 1));
+        if (from < 0 || to < from || to >= shardCount)
+            throw new IllegalArgumentException("Invalid shard range " + argument + " for " + shardCount + " shards");
+        return new int[]{from, to};
+    }
+
+    /**
+     * Requests the number of shards recommended by discord for the bot.
+     *
+     * @param token The discord bot token.
+     * @return The recommended number of shards.
+     */
+    private static int recommendedShardCount(final String token) {
+        final HttpRequest request = HttpRequest.newBuilder(GATEWAY_BOT)
+                .header("Authorization", "Bot " + token)
+                .build();
+        try {
+            final HttpResponse<String> response = HttpClient.newHttpClient()
+                    .send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200)
+                throw new IllegalStateException("Failed to request gateway info: HTTP " + response.statusCode());
+            final JsonNode shards = new ObjectMapper().readTree(response.body()).path("shards");
+            return Math.max(1, shards.asInt(1));
+        } catch (final IOException e) {
+            throw new IllegalStateException("Failed to request gateway info", e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while requesting gateway info", e);
+        }
     }
 }
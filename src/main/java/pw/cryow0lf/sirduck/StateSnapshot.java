@@ -0,0 +1,235 @@
+package pw.cryow0lf.sirduck;
+
+import discord4j.core.object.util.Snowflake;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.Logger;
+import reactor.util.Loggers;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * This class persists the {@link TemporaryChannelIndex} and the {@link TalkChannelFamilies} into a compact binary
+ * file, so that a restarted bot knows its channels before the first {@link
+ * discord4j.core.event.domain.guild.GuildCreateEvent} arrives, instead of rediscovering them by scanning.
+ * <p>
+ * The snapshot is written periodically and on shutdown, always to a temporary file first, which then atomically
+ * replaces the previous snapshot, so a crash never leaves a partial file behind. On startup it is read through a
+ * read-only memory mapping and restored as a whole, or not at all if it is corrupt. The restored guilds count as
+ * indexed, while the planning of the {@link ReconciliationEngine} verifies and patches them against the channels of
+ * the guild once it becomes available.
+ * <p>
+ * The file consists of a header, followed by the temporary text channels and then the talk channels of every guild:
+ * <pre>
+ * int magic, int version, long written at (epoch millis)
+ * int guilds, per guild: long guild, int channels, per channel: long voice, long text
+ * int guilds, per guild: long guild, int channels, per channel: long category, int number, long channel,
+ *                                                                int topic length, byte[] topic (UTF-8)
+ * </pre>
+ */
+final class StateSnapshot {
+    private static final Logger LOGGER = Loggers.getLogger(StateSnapshot.class);
+    private static final int MAGIC = 0x53445331;
+    private static final int VERSION = 1;
+
+    private final Path path;
+    private final TemporaryChannelIndex temporaryChannels;
+    private final TalkChannelFamilies talkChannels;
+
+    /**
+     * @param path              The {@link Path} of the snapshot file.
+     * @param temporaryChannels The {@link TemporaryChannelIndex} to be persisted.
+     * @param talkChannels      The {@link TalkChannelFamilies} to be persisted.
+     */
+    StateSnapshot(final Path path, final TemporaryChannelIndex temporaryChannels,
+                  final TalkChannelFamilies talkChannels) {
+        this.path = path;
+        this.temporaryChannels = temporaryChannels;
+        this.talkChannels = talkChannels;
+    }
+
+    /**
+     * Restores the indexes from the snapshot file, if it exists and is valid. Only guilds which are not indexed yet
+     * are restored, so a snapshot never overrides a newer state.
+     *
+     * @return {@code true} if the snapshot was restored.
+     */
+    boolean load() {
+        final long start = System.nanoTime();
+        final Contents contents;
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            contents = read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (final NoSuchFileException e) {
+            return false;
+        } catch (final IOException | BufferUnderflowException | IllegalArgumentException
+                | NegativeArraySizeException e) {
+            LOGGER.warn("Failed to load snapshot {}, starting without", path, e);
+            return false;
+        }
+
+        contents.temporaryChannels.forEach((guild, channels) -> {
+            if (!temporaryChannels.isIndexed(guild))
+                temporaryChannels.replace(guild, channels);
+        });
+        contents.talkChannels.forEach((guild, channels) -> {
+            if (!talkChannels.isIndexed(guild))
+                talkChannels.replace(guild, sink -> channels.forEach(channel ->
+                        sink.put(channel.category, channel.topic, channel.number, channel.channel)
+                ));
+        });
+        LOGGER.info("Loaded snapshot of {} guilds in {} ms", contents.temporaryChannels.size(),
+                Duration.ofNanos(System.nanoTime() - start).toMillis());
+        return true;
+    }
+
+    /**
+     * Writes the current state of the indexes into the snapshot file.
+     *
+     * @throws IOException If the snapshot could not be written.
+     */
+    synchronized void save() throws IOException {
+        final Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(
+                temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+
+            final Set<Snowflake> temporaryGuilds = temporaryChannels.guilds();
+            out.writeInt(temporaryGuilds.size());
+            for (final Snowflake guild : temporaryGuilds) {
+                final Map<Snowflake, Snowflake> channels = temporaryChannels.channels(guild);
+                out.writeLong(guild.asLong());
+                out.writeInt(channels.size());
+                for (final Map.Entry<Snowflake, Snowflake> entry : channels.entrySet()) {
+                    out.writeLong(entry.getKey().asLong());
+                    out.writeLong(entry.getValue().asLong());
+                }
+            }
+
+            final Set<Snowflake> talkGuilds = talkChannels.guilds();
+            out.writeInt(talkGuilds.size());
+            for (final Snowflake guild : talkGuilds) {
+                final List<TalkChannelEntry> channels = new ArrayList<>();
+                talkChannels.forEach(guild, (category, topic, number, channel) ->
+                        channels.add(new TalkChannelEntry(category, topic, number, channel))
+                );
+                out.writeLong(guild.asLong());
+                out.writeInt(channels.size());
+                for (final TalkChannelEntry channel : channels) {
+                    final byte[] topic = channel.topic.getBytes(StandardCharsets.UTF_8);
+                    out.writeLong(channel.category.map(Snowflake::asLong).orElse(0L));
+                    out.writeInt(channel.number);
+                    out.writeLong(channel.channel.asLong());
+                    out.writeInt(topic.length);
+                    out.write(topic);
+                }
+            }
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the snapshot every interval and once on shutdown of the JVM.
+     *
+     * @param interval The {@link Duration} between two snapshots.
+     * @return A {@link Disposable} stopping the periodic snapshots.
+     */
+    Disposable schedule(final Duration interval) {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::trySave, "sirduck-snapshot"));
+        return Flux.interval(interval, interval)
+                .publishOn(Schedulers.elastic())
+                .subscribe(tick -> trySave());
+    }
+
+    private void trySave() {
+        try {
+            save();
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to save snapshot {}", path, e);
+        }
+    }
+
+    /**
+     * Reads the complete contents of a snapshot, without touching the indexes.
+     *
+     * @param buffer The {@link MappedByteBuffer} of the snapshot file.
+     * @return The {@link Contents} of the snapshot.
+     * @throws IOException If the file is not a complete snapshot of the supported version.
+     */
+    private static Contents read(final MappedByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC)
+            throw new IOException("Not a snapshot");
+        final int version = buffer.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported snapshot version " + version);
+        buffer.getLong();
+
+        final Contents contents = new Contents();
+        for (int guilds = buffer.getInt(); guilds > 0; guilds--) {
+            final Snowflake guild = Snowflake.of(buffer.getLong());
+            final Map<Snowflake, Snowflake> channels = new HashMap<>();
+            for (int count = buffer.getInt(); count > 0; count--)
+                channels.put(Snowflake.of(buffer.getLong()), Snowflake.of(buffer.getLong()));
+            contents.temporaryChannels.put(guild, channels);
+        }
+        for (int guilds = buffer.getInt(); guilds > 0; guilds--) {
+            final Snowflake guild = Snowflake.of(buffer.getLong());
+            final List<TalkChannelEntry> channels = new ArrayList<>();
+            for (int count = buffer.getInt(); count > 0; count--) {
+                final long category = buffer.getLong();
+                final int number = buffer.getInt();
+                final long channel = buffer.getLong();
+                final byte[] topic = new byte[buffer.getInt()];
+                buffer.get(topic);
+                channels.add(new TalkChannelEntry(
+                        category == 0 ? Optional.empty() : Optional.of(Snowflake.of(category)),
+                        new String(topic, StandardCharsets.UTF_8), number, Snowflake.of(channel)));
+            }
+            contents.talkChannels.put(guild, channels);
+        }
+        if (buffer.hasRemaining())
+            throw new IOException("Unexpected data after the snapshot");
+        return contents;
+    }
+
+    private static final class Contents {
+        private final Map<Snowflake, Map<Snowflake, Snowflake>> temporaryChannels = new HashMap<>();
+        private final Map<Snowflake, List<TalkChannelEntry>> talkChannels = new HashMap<>();
+    }
+
+    private static final class TalkChannelEntry {
+        private final Optional<Snowflake> category;
+        private final String topic;
+        private final int number;
+        private final Snowflake channel;
+
+        @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+        private TalkChannelEntry(final Optional<Snowflake> category, final String topic, final int number,
+                                 final Snowflake channel) {
+            this.category = category;
+            this.topic = topic;
+            this.number = number;
+            this.channel = channel;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package pw.cryow0lf.sirduck;
+
+import discord4j.core.object.entity.Guild;
+import discord4j.core.object.util.Snowflake;
+import reactor.core.publisher.Mono;
+import reactor.util.Logger;
+import reactor.util.Loggers;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class reports how much of the entity store every guild occupies, once the guild became available.
+ * <p>
+ * The store does not expose the size of its entries, so the footprint of a guild is its number of cached channels
+ * and voice states, which the heap use of the store grows with. No size in bytes is derived from them, as the size of
+ * a bean depends on its contents and the JVM. Users, members and roles are not counted, as the lean store does not
+ * keep them and looking them up would fall back to REST requests.
+ * <p>
+ * The counts of every guild are published as gauges in the {@link Metrics}.
+ */
+final class StoreFootprint {
+    private static final Logger LOGGER = Loggers.getLogger(StoreFootprint.class);
+
+    private final Map<Snowflake, Footprint> footprints = new ConcurrentHashMap<>();
+    private final Metrics metrics;
+
+    /**
+     * Subscribes to the guilds to report their footprint.
+     *
+     * @param occupancy The {@link VoiceOccupancy} providing the guilds.
+     * @param metrics   The {@link Metrics} to publish the footprints into.
+     */
+    StoreFootprint(final VoiceOccupancy occupancy, final Metrics metrics) {
+        this.metrics = metrics;
+        metrics.subscribe("store_footprint", occupancy.guilds()
+                .flatMap(this::measure), footprint -> LOGGER.debug("Guild {} caches {}", footprint.guild.asString(),
+                footprint));
+    }
+
+    /**
+     * Requests the number of cached entities of the guild and publishes them, the first time the guild is measured.
+     *
+     * @param guild The {@link Guild} to be measured.
+     * @return A {@link Mono} emitting the {@link Footprint} of the guild.
+     */
+    private Mono<Footprint> measure(final Guild guild) {
+        return Mono.zip(guild.getChannels().count(), guild.getVoiceStates().count())
+                .map(counts -> new Footprint(guild.getId(), counts.getT1(), counts.getT2()))
+                .doOnNext(footprint -> {
+                    if (footprints.put(footprint.guild, footprint) == null)
+                        publish(footprint.guild);
+                });
+    }
+
+    /**
+     * Registers the gauges of a guild, which read its last measured {@link Footprint}.
+     *
+     * @param guild The {@link Snowflake} of the guild.
+     */
+    private void publish(final Snowflake guild) {
+        final String id = guild.asString();
+        metrics.gauge("sirduck_store_entities", "Entities of a guild cached in the store",
+                () -> footprints.get(guild).channels, "guild", id, "kind", "channels");
+        metrics.gauge("sirduck_store_entities", "Entities of a guild cached in the store",
+                () -> footprints.get(guild).voiceStates, "guild", id, "kind", "voice_states");
+    }
+
+    /**
+     * The number of cached entities of a guild.
+     */
+    private static final class Footprint {
+        private final Snowflake guild;
+        private final long channels;
+        private final long voiceStates;
+
+        private Footprint(final Snowflake guild, final long channels, final long voiceStates) {
+            this.guild = guild;
+            this.channels = channels;
+            this.voiceStates = voiceStates;
+        }
+
+        @Override
+        public String toString() {
+            return "Footprint{" +
+                    "channels=" + channels +
+                    ", voiceStates=" + voiceStates +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package pw.cryow0lf.sirduck;
+
+import discord4j.core.object.util.Snowflake;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * This class keeps an in-memory index of all talk channel families, so that {@link AdditionalTalkChannels} does not
+ * need to list and parse all voice channels of a guild for every event.
+ * <p>
+ * A family is identified by its guild, category and topic and holds the sorted numbers of its channels together with
+ * their ids. Channels are added and removed incrementally from the channel events, and a guild is replaced as a whole
+ * on its guild sweep.
+ */
+final class TalkChannelFamilies {
+    private final Map<Long, GuildFamilies> guilds = new ConcurrentHashMap<>();
+
+    /**
+     * Replaces the index of a guild with all channels passed to the {@link Sink}, e.g. after the guild sweep of a
+     * {@link discord4j.core.event.domain.guild.GuildCreateEvent}. The new index is built first and then swapped in,
+     * so lookups never see a partial index. From now on, the guild counts as indexed.
+     *
+     * @param guild    The {@link Snowflake} of the guild.
+     * @param channels A {@link Consumer} putting all talk channels of the guild into the provided {@link Sink}.
+     */
+    void replace(final Snowflake guild, final Consumer<Sink> channels) {
+        final GuildFamilies families = new GuildFamilies();
+        channels.accept((category, topic, number, channel) ->
+                families.put(key(guild, category, topic), number, channel.asLong())
+        );
+        guilds.put(guild.asLong(), families);
+    }
+
+    /**
+     * Drops the index of a guild, e.g. after the talk channel pattern of the guild changed. The guild does not count as
+     * indexed anymore, until it is replaced again.
+     *
+     * @param guild The {@link Snowflake} of the guild.
+     */
+    void drop(final Snowflake guild) {
+        guilds.remove(guild.asLong());
+    }
+
+    /**
+     * Returns a boolean indicating if the guild was fully indexed.
+     *
+     * @param guild The {@link Snowflake} of the guild.
+     * @return {@code true} if the index of the guild is complete.
+     */
+    boolean isIndexed(final Snowflake guild) {
+        return guilds.containsKey(guild.asLong());
+    }
+
+    /**
+     * Returns all guilds which are indexed, e.g. to write them into a {@link StateSnapshot}.
+     *
+     * @return A {@link Set} with the {@link Snowflake}s of the indexed guilds.
+     */
+    Set<Snowflake> guilds() {
+        return guilds.keySet()
+                .stream()
+                .map(Snowflake::of)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Passes all indexed channels of a guild to the {@link Sink}, in the same form as expected by
+     * {@link #replace(Snowflake, Consumer)}.
+     *
+     * @param guild The {@link Snowflake} of the guild.
+     * @param sink  The {@link Sink} receiving the channels.
+     */
+    void forEach(final Snowflake guild, final Sink sink) {
+        final GuildFamilies families = guilds.get(guild.asLong());
+        if (families == null)
+            return;
+        synchronized (families) {
+            families.families.forEach((key, family) -> family.channels.forEach((number, channel) ->
+                    sink.put(key.category == 0 ? Optional.empty() : Optional.of(Snowflake.of(key.category)),
+                            key.topic, number, Snowflake.of(channel))
+            ));
+        }
+    }
+
+    /**
+     * Returns the family with the specific topic in the category, if any channel of it is indexed.
+     *
+     * @param guild    The {@link Snowflake} of the guild.
+     * @param category A {@link Optional} with the {@link Snowflake} of the category, if available.
+     * @param topic    The topic of the family.
+     * @return An {@link Optional} with the {@link Family}.
+     */
+    @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+    Optional<Family> family(final Snowflake guild, final Optional<Snowflake> category, final String topic) {
+        final GuildFamilies families = guilds.get(guild.asLong());
+        if (families == null)
+            return Optional.empty();
+        return Optional.ofNullable(families.families.get(key(guild, category, topic)))
+                .filter(family -> !family.channels.isEmpty());
+    }
+
+    /**
+     * Adds or moves a channel to the family with the specific topic in the category. Does nothing for guilds which
+     * are not indexed.
+     *
+     * @param guild    The {@link Snowflake} of the guild.
+     * @param category A {@link Optional} with the {@link Snowflake} of the category, if available.
+     * @param topic    The topic of the family.
+     * @param number   The number of the channel in the family.
+     * @param channel  The {@link Snowflake} of the voice channel.
+     */
+    @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+    void put(final Snowflake guild, final Optional<Snowflake> category, final String topic, final int number,
+             final Snowflake channel) {
+        final GuildFamilies families = guilds.get(guild.asLong());
+        if (families != null)
+            families.put(key(guild, category, topic), number, channel.asLong());
+    }
+
+    /**
+     * Removes a channel from its family, e.g. after it was deleted or renamed.
+     *
+     * @param guild   The {@link Snowflake} of the guild.
+     * @param channel The {@link Snowflake} of the voice channel.
+     */
+    void remove(final Snowflake guild, final Snowflake channel) {
+        final GuildFamilies families = guilds.get(guild.asLong());
+        if (families != null)
+            families.remove(channel.asLong());
+    }
+
+    /**
+     * Returns the {@link Key} identifying the family with the specific topic in the category.
+     *
+     * @param guild    The {@link Snowflake} of the guild.
+     * @param category A {@link Optional} with the {@link Snowflake} of the category, if available.
+     * @param topic    The topic of the family.
+     * @return The corresponding {@link Key}.
+     */
+    @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+    static Key key(final Snowflake guild, final Optional<Snowflake> category, final String topic) {
+        return new Key(guild.asLong(), category.map(Snowflake::asLong).orElse(0L), topic);
+    }
+
+    /**
+     * Receives the channels of a guild while its index is replaced.
+     */
+    @FunctionalInterface
+    interface Sink {
+        @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+        void put(Optional<Snowflake> category, String topic, int number, Snowflake channel);
+    }
+
+    /**
+     * A family of talk channels, all sharing the same guild, category and topic.
+     */
+    static final class Family {
+        private final ConcurrentSkipListMap<Integer, Long> channels = new ConcurrentSkipListMap<>();
+
+        /**
+         * Returns the id of the channel with the number.
+         *
+         * @param number The number of the channel.
+         * @return An {@link Optional} with the {@link Snowflake} of the voice channel.
+         */
+        Optional<Snowflake> channelId(final int number) {
+            final Long channel = channels.get(number);
+            return channel == null ? Optional.empty() : Optional.of(Snowflake.of(channel));
+        }
+
+        /**
+         * Returns a read-only, ascending view of all numbers of the family.
+         *
+         * @return A {@link NavigableSet} of all numbers.
+         */
+        NavigableSet<Integer> numbers() {
+            return Collections.unmodifiableNavigableSet(channels.navigableKeySet());
+        }
+    }
+
+    private static final class GuildFamilies {
+        private final Map<Key, Family> families = new ConcurrentHashMap<>();
+        private final Map<Long, Membership> memberships = new ConcurrentHashMap<>();
+
+        private synchronized void put(final Key key, final int number, final long channel) {
+            remove(channel);
+            final Family family = families.computeIfAbsent(key, k -> new Family());
+            final Long previous = family.channels.put(number, channel);
+            if (previous != null && previous != channel)
+                memberships.remove(previous);
+            memberships.put(channel, new Membership(key, number));
+        }
+
+        private synchronized void remove(final long channel) {
+            final Membership membership = memberships.remove(channel);
+            if (membership == null)
+                return;
+            final Family family = families.get(membership.key);
+            if (family == null)
+                return;
+            family.channels.remove(membership.number, channel);
+            if (family.channels.isEmpty())
+                families.remove(membership.key, family);
+        }
+    }
+
+    private static final class Membership {
+        private final Key key;
+        private final int number;
+
+        private Membership(final Key key, final int number) {
+            this.key = key;
+            this.number = number;
+        }
+    }
+
+    /**
+     * Identifies a family by its guild, category and topic.
+     */
+    static final class Key {
+        private final long guild;
+        private final long category;
+        private final String topic;
+
+        private Key(final long guild, final long category, final String topic) {
+            this.guild = guild;
+            this.category = category;
+            this.topic = topic;
+        }
+
+        @Override
+        public String toString() {
+            return "Key{" +
+                    "guild=" + guild +
+                    ", category=" + category +
+                    ", topic='" + topic + '\'' +
+                    '}';
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key that = (Key) o;
+            return guild == that.guild &&
+                    category == that.category &&
+                    Objects.equals(topic, that.topic);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(guild, category, topic);
+        }
+    }
+}
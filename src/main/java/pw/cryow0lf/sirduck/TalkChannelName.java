@@ -0,0 +1,198 @@
+package pw.cryow0lf.sirduck;
+
+import discord4j.core.object.util.Snowflake;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The name of a talk channel, split into its topic and number, e.g. "Talk 2" into the topic "Talk " and the number 2.
+ * <p>
+ * A name matches if it ends with at least one digit and has at least one character before, none of them a line
+ * terminator, like the pattern {@code (.+?)(\d+)}. The name is parsed by hand, without any intermediate objects, and
+ * the topics are interned, so the topics of the same family are always the same instance.
+ * <p>
+ * Guilds may configure their own {@link Pattern} instead, whose first group is the topic and second group the number.
+ */
+final class TalkChannelName {
+    private final String topic;
+    private final int number;
+
+    private TalkChannelName(final String topic, final int number) {
+        this.topic = topic;
+        this.number = number;
+    }
+
+    /**
+     * Tries to parse the channel name for the pattern "&lt;topic&gt;&lt;number&gt;". Names with a number exceeding
+     * {@link Integer#MAX_VALUE} do not match.
+     *
+     * @param name The name of the voice channel.
+     * @return An {@link Optional} with the {@link TalkChannelName}, if the name matches.
+     */
+    static Optional<TalkChannelName> parse(final String name) {
+        int start = name.length();
+        while (start > 1 && isDigit(name.charAt(start - 1)))
+            start--;
+        if (start == name.length())
+            return Optional.empty();
+        for (int index = 0; index < start; index++) {
+            if (isLineTerminator(name.charAt(index)))
+                return Optional.empty();
+        }
+
+        int number = 0;
+        for (int index = start; index < name.length(); index++) {
+            final int digit = name.charAt(index) - '0';
+            if (number > (Integer.MAX_VALUE - digit) / 10)
+                return Optional.empty();
+            number = number * 10 + digit;
+        }
+        return Optional.of(new TalkChannelName(name.substring(0, start).intern(), number));
+    }
+
+    /**
+     * Tries to parse the channel name for a custom pattern, whose first group is the topic and second group the
+     * number. Names with a number exceeding {@link Integer#MAX_VALUE} do not match.
+     *
+     * @param name    The name of the voice channel.
+     * @param pattern The {@link Pattern} of the talk channel names, or {@code null} for the default pattern.
+     * @return An {@link Optional} with the {@link TalkChannelName}, if the name matches.
+     */
+    static Optional<TalkChannelName> parse(final String name, final Pattern pattern) {
+        if (pattern == null)
+            return parse(name);
+        final Matcher matcher = pattern.matcher(name);
+        if (!matcher.matches())
+            return Optional.empty();
+        try {
+            return Optional.of(new TalkChannelName(matcher.group(1).intern(), Integer.parseInt(matcher.group(2))));
+        } catch (final NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Returns the name of another channel of the same family, by replacing the number in the name of a channel of the
+     * family. Everything around the number is kept, so custom patterns with text after the number work as well.
+     *
+     * @param name    The name of a voice channel of the family.
+     * @param pattern The {@link Pattern} of the talk channel names, or {@code null} for the default pattern.
+     * @param number  The number of the other channel.
+     * @return An {@link Optional} with the name, if the name matches and the new name parses back to the same topic
+     * and the number.
+     */
+    static Optional<String> rename(final String name, final Pattern pattern, final int number) {
+        final Optional<TalkChannelName> parsed = parse(name, pattern);
+        if (parsed.isEmpty())
+            return Optional.empty();
+        final String renamed;
+        if (pattern == null) {
+            renamed = parsed.get().topic + number;
+        } else {
+            final Matcher matcher = pattern.matcher(name);
+            if (!matcher.matches())
+                return Optional.empty();
+            renamed = name.substring(0, matcher.start(2)) + number + name.substring(matcher.end(2));
+        }
+        return parse(renamed, pattern)
+                .filter(other -> other.topic.equals(parsed.get().topic) && other.number == number)
+                .map(other -> renamed);
+    }
+
+    private static boolean isDigit(final char character) {
+        return character >= '0' && character <= '9';
+    }
+
+    private static boolean isLineTerminator(final char character) {
+        return character == '\n' || character == '\r' || character == '\u0085' || character == '\u2028'
+                || character == '\u2029';
+    }
+
+    /**
+     * Returns the topic, shared by all channels of a family.
+     *
+     * @return The interned name without the number.
+     */
+    String getTopic() {
+        return topic;
+    }
+
+    /**
+     * Returns the number of the channel in its family.
+     *
+     * @return The number at the end of the name.
+     */
+    int getNumber() {
+        return number;
+    }
+
+    @Override
+    public String toString() {
+        return "TalkChannelName{" +
+                "topic='" + topic + '\'' +
+                ", number=" + number +
+                '}';
+    }
+
+    /**
+     * This class caches the parsed names by channel, so a channel is only parsed again after it was renamed.
+     */
+    static final class Cache {
+        private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+
+        /**
+         * Returns the parsed name of the channel, parsing it only if the channel is not cached or was renamed.
+         *
+         * @param channel The {@link Snowflake} of the voice channel.
+         * @param name    The current name of the voice channel.
+         * @return An {@link Optional} with the {@link TalkChannelName}, if the name matches.
+         */
+        Optional<TalkChannelName> parse(final Snowflake channel, final String name) {
+            return parse(channel, name, null);
+        }
+
+        /**
+         * Returns the parsed name of the channel, parsing it only if the channel is not cached, was renamed or the
+         * pattern changed.
+         *
+         * @param channel The {@link Snowflake} of the voice channel.
+         * @param name    The current name of the voice channel.
+         * @param pattern The {@link Pattern} of the talk channel names, or {@code null} for the default pattern.
+         * @return An {@link Optional} with the {@link TalkChannelName}, if the name matches.
+         */
+        Optional<TalkChannelName> parse(final Snowflake channel, final String name, final Pattern pattern) {
+            final Entry entry = entries.get(channel.asLong());
+            if (entry != null && entry.pattern == pattern && entry.name.equals(name))
+                return entry.parsed;
+            final Entry parsed = new Entry(name, pattern, TalkChannelName.parse(name, pattern));
+            entries.put(channel.asLong(), parsed);
+            return parsed.parsed;
+        }
+
+        /**
+         * Removes the parsed name of the channel, e.g. after it was deleted.
+         *
+         * @param channel The {@link Snowflake} of the voice channel.
+         */
+        void invalidate(final Snowflake channel) {
+            entries.remove(channel.asLong());
+        }
+    }
+
+    private static final class Entry {
+        private final String name;
+        private final Pattern pattern;
+        private final Optional<TalkChannelName> parsed;
+
+        @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+        private Entry(final String name, final Pattern pattern, final Optional<TalkChannelName> parsed) {
+            this.name = name;
+            this.pattern = pattern;
+            this.parsed = parsed;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package pw.cryow0lf.sirduck;
+
+import discord4j.core.object.util.Snowflake;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * This class keeps a per-guild index from a voice channel id to the id of its temporary text channel, so that
+ * {@link TemporaryTextChannels} does not need to scan all channels of a guild for every voice state update.
+ * <p>
+ * The index only stores ids. Whether an indexed text channel still belongs to the voice channel (name, category and
+ * topic) is verified by the caller when the channel is resolved, so a stale entry can never cause a wrong deletion.
+ */
+final class TemporaryChannelIndex {
+    private final Map<Long, GuildIndex> guilds = new ConcurrentHashMap<>();
+
+    /**
+     * Replaces the index of a guild, e.g. after the full channel sweep of a {@link
+     * discord4j.core.event.domain.guild.GuildCreateEvent}. From now on, the guild counts as indexed.
+     *
+     * @param guild    The {@link Snowflake} of the guild.
+     * @param channels A {@link Map} from voice channel id to text channel id.
+     */
+    void replace(final Snowflake guild, final Map<Snowflake, Snowflake> channels) {
+        final GuildIndex index = new GuildIndex();
+        channels.forEach((voice, text) -> index.put(voice.asLong(), text.asLong()));
+        guilds.put(guild.asLong(), index);
+    }
+
+    /**
+     * Returns a boolean indicating if the guild was fully indexed. If not, an absent entry does not mean that there
+     * is no temporary text channel.
+     *
+     * @param guild The {@link Snowflake} of the guild.
+     * @return {@code true} if the index of the guild is complete.
+     */
+    boolean isIndexed(final Snowflake guild) {
+        return guilds.containsKey(guild.asLong());
+    }
+
+    /**
+     * Returns all guilds which are indexed, e.g. to write them into a {@link StateSnapshot}.
+     *
+     * @return A {@link Set} with the {@link Snowflake}s of the indexed guilds.
+     */
+    Set<Snowflake> guilds() {
+        return guilds.keySet()
+                .stream()
+                .map(Snowflake::of)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Returns a copy of the index of a guild.
+     *
+     * @param guild The {@link Snowflake} of the guild.
+     * @return A {@link Map} from voice channel id to text channel id, empty if the guild is not indexed.
+     */
+    Map<Snowflake, Snowflake> channels(final Snowflake guild) {
+        final GuildIndex index = guilds.get(guild.asLong());
+        if (index == null)
+            return Map.of();
+        synchronized (index) {
+            return index.textByVoice.entrySet()
+                    .stream()
+                    .collect(Collectors.toMap(entry -> Snowflake.of(entry.getKey()),
+                            entry -> Snowflake.of(entry.getValue())));
+        }
+    }
+
+    /**
+     * Returns the id of the temporary text channel of a voice channel, if indexed.
+     *
+     * @param guild The {@link Snowflake} of the guild.
+     * @param voice The {@link Snowflake} of the voice channel.
+     * @return An {@link Optional} with the {@link Snowflake} of the text channel.
+     */
+    Optional<Snowflake> textChannelId(final Snowflake guild, final Snowflake voice) {
+        final GuildIndex index = guilds.get(guild.asLong());
+        if (index == null)
+            return Optional.empty();
+        final Long text = index.textByVoice.get(voice.asLong());
+        return text == null ? Optional.empty() : Optional.of(Snowflake.of(text));
+    }
+
+    /**
+     * Adds or replaces the temporary text channel of a voice channel. Does nothing for guilds which are not indexed
+     * yet, as the guild sweep will pick the channel up anyway.
+     *
+     * @param guild The {@link Snowflake} of the guild.
+     * @param voice The {@link Snowflake} of the voice channel.
+     * @param text  The {@link Snowflake} of the text channel.
+     */
+    void put(final Snowflake guild, final Snowflake voice, final Snowflake text) {
+        final GuildIndex index = guilds.get(guild.asLong());
+        if (index != null)
+            index.put(voice.asLong(), text.asLong());
+    }
+
+    /**
+     * Removes a text channel from the index, e.g. after it was deleted or its topic changed.
+     *
+     * @param guild The {@link Snowflake} of the guild.
+     * @param text  The {@link Snowflake} of the text channel.
+     */
+    void removeText(final Snowflake guild, final Snowflake text) {
+        final GuildIndex index = guilds.get(guild.asLong());
+        if (index != null)
+            index.removeText(text.asLong());
+    }
+
+    /**
+     * Removes the entry of a voice channel, e.g. after it was deleted.
+     *
+     * @param guild The {@link Snowflake} of the guild.
+     * @param voice The {@link Snowflake} of the voice channel.
+     */
+    void removeVoice(final Snowflake guild, final Snowflake voice) {
+        final GuildIndex index = guilds.get(guild.asLong());
+        if (index != null)
+            index.removeVoice(voice.asLong());
+    }
+
+    private static final class GuildIndex {
+        private final Map<Long, Long> textByVoice = new ConcurrentHashMap<>();
+        private final Map<Long, Long> voiceByText = new ConcurrentHashMap<>();
+
+        private synchronized void put(final long voice, final long text) {
+            final Long previousText = textByVoice.put(voice, text);
+            if (previousText != null && previousText != text)
+                voiceByText.remove(previousText);
+            final Long previousVoice = voiceByText.put(text, voice);
+            if (previousVoice != null && previousVoice != voice)
+                textByVoice.remove(previousVoice, text);
+        }
+
+        private synchronized void removeText(final long text) {
+            final Long voice = voiceByText.remove(text);
+            if (voice != null)
+                textByVoice.remove(voice, text);
+        }
+
+        private synchronized void removeVoice(final long voice) {
+            final Long text = textByVoice.remove(voice);
+            if (text != null)
+                voiceByText.remove(text, voice);
+        }
+    }
+}
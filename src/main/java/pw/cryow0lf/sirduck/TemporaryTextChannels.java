@@ -2,18 +2,29 @@ package pw.cryow0lf.sirduck;
 
 import discord4j.core.event.EventDispatcher;
 import discord4j.core.event.domain.VoiceStateUpdateEvent;
-import discord4j.core.event.domain.guild.GuildCreateEvent;
+import discord4j.core.event.domain.channel.TextChannelCreateEvent;
+import discord4j.core.event.domain.channel.TextChannelDeleteEvent;
+import discord4j.core.event.domain.channel.TextChannelUpdateEvent;
+import discord4j.core.event.domain.channel.VoiceChannelDeleteEvent;
 import discord4j.core.object.PermissionOverwrite;
 import discord4j.core.object.VoiceState;
 import discord4j.core.object.entity.Channel;
 import discord4j.core.object.entity.Guild;
+import discord4j.core.object.entity.GuildChannel;
 import discord4j.core.object.entity.TextChannel;
 import discord4j.core.object.entity.VoiceChannel;
 import discord4j.core.object.util.PermissionSet;
 import discord4j.core.object.util.Snowflake;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.time.Duration;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -29,124 +40,435 @@ import static discord4j.core.object.util.Permission.VIEW_CHANNEL;
  * is deleted.
  *
  * If the bot was offline when the last user disconnected, but reconnected, he will check for every leftover text
- * channel and delete if necessary.
+ * channel and delete if necessary, as planned by {@link #plan(Guild, List)}.
  *
  * A text channel is named like the voice channel, as translated by {@link #temporaryChannelName}, by transform into
  * lowercase and replacing spaces with dashes. Also the topic of the text channel is set to the id of the voice
  * channel, to allow multiple text channels with the same name without deleting the wrong text channel.
+ *
+ * To avoid scanning all channels of a guild on every voice state update, the text channels are looked up through a
+ * {@link TemporaryChannelIndex}, which is built by {@link #plan(Guild, List)} and kept current by the channel events.
+ * The full scan is only used as a fallback, if an indexed channel could not be resolved.
+ *
+ * Every event only requests a {@link #reconcile(Reconciliation)} of the affected voice channel. These are
+ * serialized per voice channel by a {@link KeyedSerializer}, so a burst of joins results in exactly one text channel.
+ * The deletion of a text channel is delayed by a grace period through a {@link CleanupScheduler} and cancelled if
+ * somebody rejoins, so a quick reconnect keeps the text channel.
+ *
+ * The permissions of the users are reconciled by {@link #reconcilePermissions(VoiceChannel)} as well: All changes
+ * within a short window are collected and applied with a single edit of the text channel.
+ *
+ * All REST actions are submitted to an {@link ActionQueue}, so creations and permissions are handled before deletions
+ * and actions which are not needed anymore are dropped.
+ *
+ * If a {@link ChannelArchive} is configured, the history of a text channel is archived before it is deleted. The
+ * archive runs outside of the {@link KeyedSerializer} and before the deletion is queued, so it neither holds up a join
+ * to the voice channel nor occupies the {@link ActionQueue} of the guild. Once archived, the cleanup is submitted
+ * again, which deletes the text channel only if the voice channel is still empty. If archiving fails, the text
+ * channel is kept and its cleanup is scheduled again, with a backoff growing with every failure.
+ *
+ * The feature and the grace period are configured per guild and category by the {@link FeatureConfig}. Voice channels
+ * of a category where the feature is disabled are left alone, including text channels they already have.
+ *
+ * The pipelines are subscribed through {@link Metrics}, which restarts them after an error. The created and deleted
+ * channels, applied overwrites and the time until a voice state update took effect are recorded there as well.
  */
-final class TemporaryTextChannels {
+final class TemporaryTextChannels implements GuildReconciler {
+    private static final String FEATURE = "temporary_text";
+    private static final Duration PERMISSION_WINDOW = Duration.ofMillis(250);
+    private static final Duration FIRST_ARCHIVE_RETRY = Duration.ofSeconds(30);
+    private static final Duration MAX_ARCHIVE_RETRY = Duration.ofMinutes(30);
+    private static final PermissionSet TEMPORARY_PERMISSIONS =
+            PermissionSet.of(VIEW_CHANNEL, READ_MESSAGE_HISTORY, SEND_MESSAGES, ADD_REACTIONS);
+
+    private final KeyedSerializer<Snowflake, Reconciliation> reconciler;
+    private final KeyedSerializer<Snowflake, VoiceChannel> permissions;
+    private final TemporaryChannelIndex index;
+    private final CleanupScheduler<Snowflake> cleanups;
+    private final Map<Long, Integer> archiveFailures = new ConcurrentHashMap<>();
+    private final Map<Long, Long> archived = new ConcurrentHashMap<>();
+    private final Set<Long> archiving = ConcurrentHashMap.newKeySet();
+    private final VoiceOccupancy occupancy;
+    private final ActionQueue actions;
+    private final ChannelArchive archive;
+    private final PositionPlanner positions;
+    private final FeatureConfig config;
+    private final Metrics.Counter created;
+    private final Metrics.Counter deleted;
+    private final Metrics.Counter overwriteEdits;
 
     /**
      * Subscribes to the events to provide the functionality.
      *
-     * @param dispatcher The {@link EventDispatcher} to which the subscriptions are made.
+     * @param dispatcher  The {@link EventDispatcher} to which the subscriptions are made.
+     * @param occupancy   The {@link VoiceOccupancy} providing the guilds, voice state updates and channel occupancy.
+     * @param actions     The {@link ActionQueue} all REST actions are submitted to.
+     * @param index       The {@link TemporaryChannelIndex} of the text channels, possibly restored from a snapshot.
+     * @param config      The {@link FeatureConfig} providing the settings of every guild and category.
+     * @param archive     The {@link ChannelArchive} to archive text channels into before deletion, or {@code null} to
+     *                    delete them without archiving.
+     * @param positions   The {@link PositionPlanner} ordering created text channels like their voice channels.
+     * @param metrics     The {@link Metrics} to record the channels and latencies into.
      */
-    TemporaryTextChannels(final EventDispatcher dispatcher) {
-        dispatcher.on(GuildCreateEvent.class)
-                .map(GuildCreateEvent::getGuild)
-                .flatMap(Guild::getChannels)
-                .filter(channel -> channel.getType() == Channel.Type.GUILD_VOICE)
-                .cast(VoiceChannel.class)
-                .filterWhen(this::isEmpty)
-                .flatMap(this::textChannel)
-                .flatMap(channel -> channel.delete("Automated Temporary Text Channel"))
-                .subscribe();
+    TemporaryTextChannels(final EventDispatcher dispatcher, final VoiceOccupancy occupancy, final ActionQueue actions,
+                          final TemporaryChannelIndex index, final FeatureConfig config, final ChannelArchive archive,
+                          final PositionPlanner positions, final Metrics metrics) {
+        this.index = index;
+        this.occupancy = occupancy;
+        this.actions = actions;
+        this.archive = archive;
+        this.positions = positions;
+        this.config = config;
+        this.cleanups = new CleanupScheduler<>();
+        this.reconciler = new KeyedSerializer<>(this::reconcile, Reconciliation::merge,
+                metrics.errors("temporary_text_reconcile"));
+        this.permissions = new KeyedSerializer<>(this::reconcilePermissions, (queued, submitted) -> submitted,
+                metrics.errors("temporary_text_permissions"));
+        this.created = metrics.counter("sirduck_channels_created_total", "Channels created", "feature", FEATURE);
+        this.deleted = metrics.counter("sirduck_channels_deleted_total", "Channels deleted", "feature", FEATURE);
+        this.overwriteEdits = metrics.counter("sirduck_overwrites_applied_total", "Permission overwrite edits applied",
+                "feature", FEATURE);
+        final Metrics.Histogram latency = metrics.histogram("sirduck_effect_latency_seconds",
+                "Time from a voice state update until the affected channels were reconciled", "feature", FEATURE);
 
-        dispatcher.on(VoiceStateUpdateEvent.class)
+        metrics.subscribe("temporary_text_join", occupancy.updates()
                 .map(VoiceStateUpdateEvent::getCurrent)
-                .filterWhen(this::isTextChannelMissing)
                 .flatMap(VoiceState::getChannel)
-                .flatMap(this::createTemporaryChannel)
-                .subscribe();
+                .filter(this::isEnabled)
+                .doOnNext(this::cancelCleanup),
+                channel -> latency.time(submit(channel, false)));
 
-        dispatcher.on(VoiceStateUpdateEvent.class)
+        metrics.subscribe("temporary_text_leave", occupancy.updates()
                 .filter(event -> event.getOld().isPresent())
                 .map(event -> event.getOld().orElse(null))
-                .filterWhen(this::hasTemporaryChannel)
                 .flatMap(VoiceState::getChannel)
-                .filterWhen(this::isEmpty)
-                .flatMap(this::textChannel)
-                .flatMap(channel -> channel.delete("Automated Temporary Text Channel"))
-                .subscribe();
+                .filter(this::isEnabled)
+                .filter(channel -> !occupancy.isEmpty(channel)),
+                channel -> latency.time(submit(channel, false)));
+
+        metrics.subscribe("temporary_text_cleanup", occupancy.updates()
+                .filter(event -> event.getOld().isPresent())
+                .map(event -> event.getOld().orElse(null))
+                .flatMap(VoiceState::getChannel)
+                .filter(this::isEnabled)
+                .filter(occupancy::isEmpty),
+                channel -> cleanups.schedule(channel.getId(), config.settings(channel).getGracePeriod(),
+                        () -> submit(channel, true)));
+
+        metrics.subscribe("temporary_text_index_update", Flux.merge(
+                dispatcher.on(TextChannelCreateEvent.class).map(TextChannelCreateEvent::getChannel),
+                dispatcher.on(TextChannelUpdateEvent.class).map(TextChannelUpdateEvent::getCurrent)
+        ), this::indexTextChannel);
+
+        metrics.subscribe("temporary_text_index_text_delete", dispatcher.on(TextChannelDeleteEvent.class)
+                .map(TextChannelDeleteEvent::getChannel),
+                channel -> index.removeText(channel.getGuildId(), channel.getId()));
+
+        metrics.subscribe("temporary_text_index_voice_delete", dispatcher.on(VoiceChannelDeleteEvent.class)
+                .map(VoiceChannelDeleteEvent::getChannel), channel -> {
+            archiveFailures.remove(channel.getId().asLong());
+            archived.remove(channel.getId().asLong());
+            index.removeVoice(channel.getGuildId(), channel.getId());
+        });
     }
 
     /**
-     * Requests a boolean indicating if the voice channel is empty.
+     * Replaces the {@link TemporaryChannelIndex} of the guild with all temporary text channels among the channels and
+     * plans to delete the text channels of empty voice channels, to create the missing text channels of used voice
+     * channels and to update outdated permissions.
      *
-     * @param state The {@link VoiceChannel} to be checked if empty.
-     * @return A {@link Mono} emitting a boolean if the voice channel is empty.
+     * @param guild    The {@link Guild} to be reconciled.
+     * @param channels All channels of the guild, as currently cached.
+     * @return The {@link ReconciliationPlan} with all needed changes.
      */
-    private Mono<Boolean> isEmpty(final VoiceChannel channel) {
-        return channel.getVoiceStates().count().map(count -> count <= 0);
+    @Override
+    public ReconciliationPlan plan(final Guild guild, final List<GuildChannel> channels) {
+        final Map<Snowflake, Snowflake> temporaryChannels = temporaryChannels(channels);
+        index.replace(guild.getId(), temporaryChannels);
+
+        final Map<Snowflake, TextChannel> textChannels = channels.stream()
+                .filter(channel -> channel.getType() == Channel.Type.GUILD_TEXT)
+                .map(TextChannel.class::cast)
+                .collect(Collectors.toMap(TextChannel::getId, Function.identity()));
+
+        final ReconciliationPlan plan = new ReconciliationPlan();
+        channels.stream()
+                .filter(channel -> channel.getType() == Channel.Type.GUILD_VOICE)
+                .map(VoiceChannel.class::cast)
+                .filter(this::isEnabled)
+                .forEach(channel -> {
+                    final TextChannel textChannel = Optional.ofNullable(temporaryChannels.get(channel.getId()))
+                            .map(textChannels::get)
+                            .orElse(null);
+                    if (occupancy.isEmpty(channel)) {
+                        if (textChannel != null)
+                            plan.change(ReconciliationPlan.Kind.DELETE, textChannel.getName())
+                                    .action(() -> submit(channel, true));
+                    } else if (textChannel == null) {
+                        plan.change(ReconciliationPlan.Kind.CREATE, temporaryChannelName(channel))
+                                .action(() -> submit(channel, false));
+                    } else if (!overwriteKeys(temporaryChannelOverwrites(textChannel, channel))
+                            .equals(overwriteKeys(textChannel.getPermissionOverwrites()))) {
+                        plan.change(ReconciliationPlan.Kind.PERMISSION, textChannel.getName())
+                                .action(() -> permissions.submit(channel.getId(), channel));
+                    }
+                });
+        return plan;
     }
 
     /**
-     * Requests a boolean indicating if the text channel corresponding to the voice channel provided by
-     * {@link VoiceState#getChannel()} is missing. If there is a text channel, give the userid of the {@link VoiceState}
-     * permissions for the existing text channel as created by {@link #temporaryChannelPermissions(Snowflake)}.
+     * Returns all temporary text channels among the provided channels, as checked by
+     * {@link #isTemporaryChannel(TextChannel, VoiceChannel)}.
      *
-     * @param state The {@link VoiceState} to be used.
-     * @return A {@link Mono} emitting a boolean if the corresponding text channel exists.
+     * @param channels All channels of a guild.
+     * @return A {@link Map} from the voice channel id to the id of its temporary text channel.
      */
-    private Mono<Boolean> isTextChannelMissing(final VoiceState state) {
-        return state.getChannel()
-                .flatMap(this::textChannel)
-                .flatMap(channel -> channel.addMemberOverwrite(state.getUserId(),
-                        temporaryChannelPermissions(state.getUserId()))
-                        .thenReturn(channel)
+    private Map<Snowflake, Snowflake> temporaryChannels(final List<GuildChannel> channels) {
+        final Map<Snowflake, VoiceChannel> voiceChannels = channels.stream()
+                .filter(channel -> channel.getType() == Channel.Type.GUILD_VOICE)
+                .map(VoiceChannel.class::cast)
+                .collect(Collectors.toMap(VoiceChannel::getId, Function.identity()));
+
+        return channels.stream()
+                .filter(channel -> channel.getType() == Channel.Type.GUILD_TEXT)
+                .map(TextChannel.class::cast)
+                .filter(channel -> voiceChannelId(channel)
+                        .map(voiceChannels::get)
+                        .filter(voiceChannel -> isTemporaryChannel(channel, voiceChannel))
+                        .isPresent()
                 )
-                .hasElement()
-                .map(bool -> !bool);
+                .collect(Collectors.toMap(channel -> voiceChannelId(channel).orElseThrow(), TextChannel::getId,
+                        (first, second) -> first));
+    }
+
+    /**
+     * Returns a boolean indicating if temporary text channels are enabled for the category of the voice channel.
+     *
+     * @param channel The {@link VoiceChannel} to be checked.
+     * @return {@code true} if the voice channel gets a temporary text channel.
+     */
+    private boolean isEnabled(final VoiceChannel channel) {
+        return config.settings(channel).isTemporaryTextEnabled();
+    }
+
+    /**
+     * Adds the text channel to the {@link TemporaryChannelIndex}, if its topic is a voice channel id, else removes
+     * it. The name and category are verified on lookup by {@link #textChannel(VoiceChannel)}.
+     *
+     * @param channel The created or updated {@link TextChannel}.
+     */
+    private void indexTextChannel(final TextChannel channel) {
+        voiceChannelId(channel).ifPresentOrElse(
+                voice -> index.put(channel.getGuildId(), voice, channel.getId()),
+                () -> index.removeText(channel.getGuildId(), channel.getId())
+        );
+    }
+
+    /**
+     * Submits a {@link Reconciliation} of the voice channel to the {@link KeyedSerializer}.
+     *
+     * @param channel The {@link VoiceChannel} to be reconciled.
+     * @param cleanup Whether the text channel should be deleted, if the voice channel is empty.
+     * @return A {@link Mono} completing when the voice channel was reconciled.
+     */
+    private Mono<Void> submit(final VoiceChannel channel, final boolean cleanup) {
+        return reconciler.submit(channel.getId(), new Reconciliation(channel, cleanup));
+    }
+
+    /**
+     * Requests to bring the temporary text channel of a voice channel in line with its current occupancy. If the
+     * voice channel is empty and a cleanup was requested, the text channel is deleted. Else the text channel is
+     * created if missing, or its permissions are reconciled by {@link #reconcilePermissions(VoiceChannel)}.
+     *
+     * @param reconciliation The {@link Reconciliation} providing the {@link VoiceChannel}.
+     * @return A {@link Mono} completing when the text channel is up to date.
+     */
+    private Mono<Void> reconcile(final Reconciliation reconciliation) {
+        final VoiceChannel channel = reconciliation.channel;
+        return textChannel(channel)
+                .map(Optional::of)
+                .defaultIfEmpty(Optional.empty())
+                .flatMap(textChannel -> {
+                    if (occupancy.isEmpty(channel))
+                        return Mono.justOrEmpty(textChannel)
+                                .filter(text -> reconciliation.cleanup)
+                                .filter(text -> isArchived(channel, text))
+                                .flatMap(text -> actions.submit(channel.getGuildId(), ActionQueue.Priority.DELETE,
+                                        () -> occupancy.isEmpty(channel),
+                                        () -> text.delete("Automated Temporary Text Channel")
+                                                .doOnSuccess(ignored -> {
+                                                    deleted.increment();
+                                                    archived.remove(channel.getId().asLong());
+                                                })
+                                ));
+                    return textChannel
+                            .map(text -> permissions.submit(channel.getId(), channel))
+                            .orElseGet(() -> createTemporaryChannel(channel).then());
+                });
+    }
+
+    /**
+     * Returns a boolean indicating if the text channel, which is about to be deleted, may be deleted, because it was
+     * archived or no {@link ChannelArchive} is configured. Else its archive is started by
+     * {@link #archive(VoiceChannel, TextChannel)}, unless it is already running.
+     *
+     * @param voiceChannel The {@link VoiceChannel} of the text channel.
+     * @param channel      The {@link TextChannel} to be deleted.
+     * @return {@code true} if the text channel may be deleted now.
+     */
+    private boolean isArchived(final VoiceChannel voiceChannel, final TextChannel channel) {
+        final long voice = voiceChannel.getId().asLong();
+        if (archive == null || Long.valueOf(channel.getId().asLong()).equals(archived.get(voice)))
+            return true;
+        if (archiving.add(voice))
+            archive(voiceChannel, channel);
+        return false;
+    }
+
+    /**
+     * Archives the history of a text channel in the background, outside of the {@link KeyedSerializer}. Once
+     * archived, the text channel is marked as archived if the voice channel is still empty, and the cleanup of the
+     * voice channel is submitted again. If archiving fails, the cleanup is scheduled again, after a backoff which
+     * doubles with every failure of the voice channel.
+     *
+     * @param voiceChannel The {@link VoiceChannel} of the text channel.
+     * @param channel      The {@link TextChannel} to be archived.
+     */
+    private void archive(final VoiceChannel voiceChannel, final TextChannel channel) {
+        final long voice = voiceChannel.getId().asLong();
+        archive.archive(channel)
+                .doOnTerminate(() -> archiving.remove(voice))
+                .doOnSuccess(count -> {
+                    archiveFailures.remove(voice);
+                    if (occupancy.isEmpty(voiceChannel))
+                        archived.put(voice, channel.getId().asLong());
+                })
+                .doOnError(throwable -> {
+                    final int failures = archiveFailures.merge(voice, 1, Integer::sum);
+                    final Duration backoff = Duration.ofSeconds(Math.min(MAX_ARCHIVE_RETRY.getSeconds(),
+                            FIRST_ARCHIVE_RETRY.getSeconds() << Math.min(failures - 1, 16)));
+                    cleanups.schedule(voiceChannel.getId(), backoff, () -> submit(voiceChannel, true));
+                })
+                .then(Mono.defer(() -> submit(voiceChannel, true)))
+                .onErrorResume(throwable -> Mono.empty())
+                .subscribe();
+    }
+
+    /**
+     * Cancels the pending cleanup of a voice channel somebody joined, including a retry after a failed archive. An
+     * archive taken before the join is discarded, so the messages written since are archived as well.
+     *
+     * @param channel The joined {@link VoiceChannel}.
+     */
+    private void cancelCleanup(final VoiceChannel channel) {
+        cleanups.cancel(channel.getId());
+        archiveFailures.remove(channel.getId().asLong());
+        archived.remove(channel.getId().asLong());
+    }
+
+    /**
+     * Requests to bring the permission overwrites of the temporary text channel in line with the users of the voice
+     * channel as returned by {@link #temporaryChannelOverwrites(TextChannel, VoiceChannel)}, after waiting for further
+     * changes for a short window. If anything changed, the overwrites are applied with a single edit.
+     *
+     * @param voiceChannel The {@link VoiceChannel} providing the users.
+     * @return A {@link Mono} completing when the permissions are up to date.
+     */
+    private Mono<Void> reconcilePermissions(final VoiceChannel voiceChannel) {
+        return Mono.delay(PERMISSION_WINDOW)
+                .then(Mono.defer(() -> textChannel(voiceChannel)))
+                .flatMap(textChannel -> {
+                    final Set<PermissionOverwrite> overwrites = temporaryChannelOverwrites(textChannel, voiceChannel);
+                    if (overwriteKeys(overwrites).equals(overwriteKeys(textChannel.getPermissionOverwrites())))
+                        return Mono.empty();
+                    return actions.submit(voiceChannel.getGuildId(), ActionQueue.Priority.PERMISSION, () ->
+                            textChannel.edit(spec -> spec.setPermissionOverwrites(overwrites)
+                                    .setReason("Automated Temporary Text Channel")
+                            ).doOnSuccess(ignored -> overwriteEdits.increment())
+                    ).then();
+                });
+    }
+
+    /**
+     * Returns the permission overwrites the temporary text channel should have: Every connected user receives
+     * permissions as created by {@link #temporaryChannelPermissions(Snowflake)}, while these permissions are taken
+     * from all users who left. All other overwrites are kept.
+     *
+     * @param textChannel  The temporary {@link TextChannel} of the voice channel.
+     * @param voiceChannel The {@link VoiceChannel} providing the users.
+     * @return A {@link Set} with the {@link PermissionOverwrite}s the text channel should have.
+     */
+    private Set<PermissionOverwrite> temporaryChannelOverwrites(final TextChannel textChannel,
+                                                                final VoiceChannel voiceChannel) {
+        final Set<Snowflake> members = occupancy.members(voiceChannel.getGuildId(), voiceChannel.getId());
+        final Set<PermissionOverwrite> overwrites = textChannel.getPermissionOverwrites()
+                .stream()
+                .filter(overwrite -> !isTemporaryPermission(overwrite))
+                .filter(overwrite -> overwrite.getMemberId().map(member -> !members.contains(member)).orElse(true))
+                .collect(Collectors.toCollection(HashSet::new));
+        members.forEach(member -> overwrites.add(temporaryChannelPermissions(member)));
+        return overwrites;
+    }
+
+    /**
+     * Returns a boolean indicating if the overwrite is a member overwrite as created by
+     * {@link #temporaryChannelPermissions(Snowflake)}.
+     *
+     * @param overwrite The {@link PermissionOverwrite} to be checked.
+     * @return {@code true} if the overwrite was given for the temporary text channel.
+     */
+    private boolean isTemporaryPermission(final PermissionOverwrite overwrite) {
+        return overwrite.getMemberId().isPresent()
+                && overwrite.getAllowed().equals(TEMPORARY_PERMISSIONS)
+                && overwrite.getDenied().isEmpty();
+    }
+
+    /**
+     * Returns a comparable representation of permission overwrites, consisting of the target, allowed and denied
+     * permissions of each overwrite.
+     *
+     * @param overwrites The {@link PermissionOverwrite}s to be represented.
+     * @return A {@link Set} with a key for every overwrite.
+     */
+    private static Set<String> overwriteKeys(final Set<? extends PermissionOverwrite> overwrites) {
+        return overwrites.stream()
+                .map(overwrite -> overwrite.getRoleId().or(overwrite::getMemberId).map(Snowflake::asString)
+                        .orElse("") + ':' + overwrite.getAllowed().getRawValue()
+                        + ':' + overwrite.getDenied().getRawValue())
+                .collect(Collectors.toSet());
     }
 
     /**
      * Requests the creation of a text channel for a voice channel, which normally no one can see/write into, except
      * users in the specific voice chat. The text channel gets the name of the voice channel modified by
-     * {@link #temporaryChannelName(VoiceChannel)}, the same permission overrides as the voice channel and positioned
-     * over the voice channel in the same category. The topic of the text channel is set to the id of the voice channel.
+     * {@link #temporaryChannelName(VoiceChannel)} and the same permission overrides as the voice channel in the same
+     * category. The topic of the text channel is set to the id of the voice channel. Once created, the
+     * {@link PositionPlanner} moves it in the order of the voice channels.
      *
      * @param channel The {@link VoiceChannel} to be used.
      * @return A {@link Mono} emitting the corresponding {@link TextChannel}.
      */
     private Mono<TextChannel> createTemporaryChannel(final VoiceChannel channel) {
-        return channel.getVoiceStates()
-                .map(VoiceState::getUserId)
+        return Flux.fromIterable(occupancy.members(channel.getGuildId(), channel.getId()))
                 .map(this::temporaryChannelPermissions)
                 .collect(Collectors.toCollection(HashSet::new))
                 .doOnNext(permissionOverwrites -> permissionOverwrites.add(
                         forRole(channel.getGuildId(), PermissionSet.none(), PermissionSet.of(VIEW_CHANNEL))
                 ))
-                .zipWith(channel.getGuild(), (permissionOverwrites, guild) -> guild.createTextChannel(spec ->
-                        spec.setName(temporaryChannelName(channel))
-                                .setPosition(Math.max(0, channel.getRawPosition() - 1))
-                                .setPermissionOverwrites(permissionOverwrites)
-                                .setParentId(channel.getCategoryId().orElse(null))
-                                .setTopic(channel.getId().asString())
-                                .setReason("Automated Temporary Text Channel")
+                .zipWith(channel.getGuild(), (permissionOverwrites, guild) -> actions.submit(channel.getGuildId(),
+                        ActionQueue.Priority.CREATE, () -> !occupancy.isEmpty(channel), () ->
+                                guild.createTextChannel(spec ->
+                                        spec.setName(temporaryChannelName(channel))
+                                                .setPermissionOverwrites(permissionOverwrites)
+                                                .setParentId(channel.getCategoryId().orElse(null))
+                                                .setTopic(channel.getId().asString())
+                                                .setReason("Automated Temporary Text Channel")
+                                )
                 ))
-                .flatMap(Function.identity());
-    }
-
-    /**
-     * Requests a boolean indicating if there is a text channel corresponding to the voice channel provided by
-     * {@link VoiceState#getChannel()}. If there is a text channel, give the userid of the {@link VoiceState}
-     * permissions for the existing text channel as created by {@link #temporaryChannelPermissions(Snowflake)}.
-     *
-     * @param state The {@link VoiceState} to be used.
-     * @return A {@link Mono} emitting a boolean if the corresponding text channel exists.
-     */
-    private Mono<Boolean> hasTemporaryChannel(final VoiceState state) {
-        return state.getChannel()
-                .flatMap(this::textChannel)
-                .doOnNext(channel -> channel.addMemberOverwrite(state.getUserId(),
-                        PermissionOverwrite.forMember(state.getUserId(),
-                                PermissionSet.none(),
-                                PermissionSet.none()
-                        ))
-                        .thenReturn(channel)
-                )
-                .hasElement();
+                .flatMap(Function.identity())
+                .doOnNext(textChannel -> created.increment())
+                .doOnNext(textChannel -> index.put(channel.getGuildId(), channel.getId(), textChannel.getId()))
+                .doOnNext(positions::submit);
     }
 
     /**
@@ -157,10 +479,7 @@ final class TemporaryTextChannels {
      * @return The constructed {@link PermissionOverwrite} bound to the provided {@link Snowflake}.
      */
     private PermissionOverwrite temporaryChannelPermissions(final Snowflake user) {
-        return PermissionOverwrite.forMember(user,
-                PermissionSet.of(VIEW_CHANNEL, READ_MESSAGE_HISTORY, SEND_MESSAGES, ADD_REACTIONS),
-                PermissionSet.none()
-        );
+        return PermissionOverwrite.forMember(user, TEMPORARY_PERMISSIONS, PermissionSet.none());
     }
 
     /**
@@ -168,20 +487,98 @@ final class TemporaryTextChannels {
      * The {@link TextChannel} needs to be in the same Category as the {@link VoiceChannel}, if in any, as well as
      * have the SnowflakeID of the {@link VoiceChannel} in its topic. The name of the channel needs to conform to
      * {@link #temporaryChannelName(VoiceChannel)} of the provided {@link VoiceChannel}.
+     * <p>
+     * The text channel is looked up in the {@link TemporaryChannelIndex}. If the guild is not indexed yet, or the
+     * indexed channel can not be resolved anymore, {@link #scanTextChannel(VoiceChannel)} is used instead.
      *
      * @param voiceChannel The {@link VoiceChannel} to be used.
      * @return A {@link Mono} that emits the corresponding {@link TextChannel}, if available.
      */
     private Mono<TextChannel> textChannel(final VoiceChannel voiceChannel) {
+        final Optional<Snowflake> textChannelId = index.textChannelId(voiceChannel.getGuildId(), voiceChannel.getId());
+        if (textChannelId.isEmpty() && index.isIndexed(voiceChannel.getGuildId()))
+            return Mono.empty();
+
+        return Mono.justOrEmpty(textChannelId)
+                .flatMap(voiceChannel.getClient()::getChannelById)
+                .onErrorResume(throwable -> Mono.empty())
+                .ofType(TextChannel.class)
+                .filter(channel -> isTemporaryChannel(channel, voiceChannel))
+                .switchIfEmpty(Mono.defer(() -> scanTextChannel(voiceChannel)));
+    }
+
+    /**
+     * Requests all channels of the guild to find the {@link TextChannel} for a specific {@link VoiceChannel}, as
+     * checked by {@link #isTemporaryChannel(TextChannel, VoiceChannel)}. The result is written back into the
+     * {@link TemporaryChannelIndex}.
+     *
+     * @param voiceChannel The {@link VoiceChannel} to be used.
+     * @return A {@link Mono} that emits the corresponding {@link TextChannel}, if available.
+     */
+    private Mono<TextChannel> scanTextChannel(final VoiceChannel voiceChannel) {
         final String channelName = temporaryChannelName(voiceChannel);
         return voiceChannel.getGuild()
                 .flatMapMany(Guild::getChannels)
                 .filter(channel -> channel.getName().equals(channelName))
                 .filter(channel -> channel.getType() == Channel.Type.GUILD_TEXT)
                 .cast(TextChannel.class)
-                .filter(channel -> channel.getCategoryId().equals(voiceChannel.getCategoryId()))
-                .filter(channel -> channel.getTopic().map(voiceChannel.getId().asString()::equals).orElse(false))
-                .singleOrEmpty();
+                .filter(channel -> isTemporaryChannel(channel, voiceChannel))
+                .singleOrEmpty()
+                .doOnNext(channel -> index.put(voiceChannel.getGuildId(), voiceChannel.getId(), channel.getId()))
+                .switchIfEmpty(Mono.fromRunnable(() ->
+                        index.removeVoice(voiceChannel.getGuildId(), voiceChannel.getId())
+                ));
+    }
+
+    /**
+     * Returns a boolean indicating if the {@link TextChannel} is the temporary text channel of the
+     * {@link VoiceChannel}. The text channel needs to be in the same category, have the id of the voice channel as
+     * topic and be named as translated by {@link #temporaryChannelName(VoiceChannel)}.
+     *
+     * @param channel      The {@link TextChannel} to be checked.
+     * @param voiceChannel The {@link VoiceChannel} to be used.
+     * @return {@code true} if the text channel belongs to the voice channel.
+     */
+    private boolean isTemporaryChannel(final TextChannel channel, final VoiceChannel voiceChannel) {
+        return isTemporaryChannel(channel.getName(), channel.getCategoryId(), channel.getTopic(),
+                voiceChannel.getName(), voiceChannel.getCategoryId(), voiceChannel.getId());
+    }
+
+    /**
+     * Returns a boolean indicating if a text channel is the temporary text channel of a voice channel, as described
+     * by {@link #isTemporaryChannel(TextChannel, VoiceChannel)}, from the properties of both channels.
+     *
+     * @param name          The name of the text channel.
+     * @param category      The {@link Snowflake} of the category of the text channel, if any.
+     * @param topic         The topic of the text channel, if any.
+     * @param voiceName     The name of the voice channel.
+     * @param voiceCategory The {@link Snowflake} of the category of the voice channel, if any.
+     * @param voice         The {@link Snowflake} of the voice channel.
+     * @return {@code true} if the text channel belongs to the voice channel.
+     */
+    @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+    static boolean isTemporaryChannel(final String name, final Optional<Snowflake> category,
+                                      final Optional<String> topic, final String voiceName,
+                                      final Optional<Snowflake> voiceCategory, final Snowflake voice) {
+        return name.equals(temporaryChannelName(voiceName))
+                && category.equals(voiceCategory)
+                && topic.map(voice.asString()::equals).orElse(false);
+    }
+
+    /**
+     * Returns the voice channel id stored in the topic of a text channel, if the topic is a valid id.
+     *
+     * @param channel The {@link TextChannel} which topic will be used.
+     * @return An {@link Optional} with the {@link Snowflake} of the voice channel.
+     */
+    private static Optional<Snowflake> voiceChannelId(final TextChannel channel) {
+        return channel.getTopic().flatMap(topic -> {
+            try {
+                return Optional.of(Snowflake.of(Long.parseUnsignedLong(topic)));
+            } catch (final NumberFormatException e) {
+                return Optional.empty();
+            }
+        });
     }
 
     /**
@@ -191,7 +588,34 @@ final class TemporaryTextChannels {
      * @return the corresponding text channel name
      */
     private String temporaryChannelName(final VoiceChannel voiceChannel) {
-        return voiceChannel.getName().toLowerCase().replace(' ', '-');
+        return temporaryChannelName(voiceChannel.getName());
     }
 
+    /**
+     * Returns a valid text channel name for a provided voice channel name, by transforming it into lowercase and
+     * replacing spaces with dashes.
+     *
+     * @param voiceChannelName the name of the voice channel
+     * @return the corresponding text channel name
+     */
+    static String temporaryChannelName(final String voiceChannelName) {
+        return voiceChannelName.toLowerCase().replace(' ', '-');
+    }
+
+    private static final class Reconciliation {
+        private final VoiceChannel channel;
+        private final boolean cleanup;
+
+        private Reconciliation(final VoiceChannel channel, final boolean cleanup) {
+            this.channel = channel;
+            this.cleanup = cleanup;
+        }
+
+        /**
+         * Merges a queued with a newly submitted {@link Reconciliation}, keeping a requested cleanup.
+         */
+        private static Reconciliation merge(final Reconciliation queued, final Reconciliation submitted) {
+            return new Reconciliation(submitted.channel, queued.cleanup || submitted.cleanup);
+        }
+    }
 }
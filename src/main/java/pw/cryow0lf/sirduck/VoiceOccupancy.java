@@ -0,0 +1,201 @@
+package pw.cryow0lf.sirduck;
+
+import discord4j.core.event.EventDispatcher;
+import discord4j.core.event.domain.VoiceStateUpdateEvent;
+import discord4j.core.event.domain.guild.GuildCreateEvent;
+import discord4j.core.object.VoiceState;
+import discord4j.core.object.entity.Channel;
+import discord4j.core.object.entity.Guild;
+import discord4j.core.object.entity.VoiceChannel;
+import discord4j.core.object.util.Snowflake;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * This class tracks how many users are connected to each voice channel, so that checking if a voice channel is empty
+ * does not need to count its voice states on every event.
+ * <p>
+ * The table is seeded from the voice states of a {@link GuildCreateEvent} and updated from every
+ * {@link VoiceStateUpdateEvent}. To guarantee that the features never see an event before it was applied here, they
+ * consume the guilds and voice state updates through {@link #guilds()} and {@link #updates()} instead of subscribing
+ * to the {@link EventDispatcher} directly.
+ * <p>
+ * Reading the occupancy never locks, updates are serialized per guild. Instead of trusting the old
+ * {@link VoiceState} of an event, which is missing if it was not cached, the channel of every user is remembered, so a
+ * repeated or out-of-band event can never count a user twice.
+ */
+final class VoiceOccupancy {
+    private final Map<Long, GuildOccupancy> guilds = new ConcurrentHashMap<>();
+    private final Map<Long, Integer> occupants = new ConcurrentHashMap<>();
+    private final Flux<Guild> guildFlux;
+    private final Flux<VoiceStateUpdateEvent> updateFlux;
+
+    /**
+     * Subscribes to the events to keep the occupancy current.
+     *
+     * @param dispatcher The {@link EventDispatcher} to which the subscriptions are made.
+     */
+    VoiceOccupancy(final EventDispatcher dispatcher) {
+        guildFlux = dispatcher.on(GuildCreateEvent.class)
+                .map(GuildCreateEvent::getGuild)
+                .flatMap(guild -> guild.getVoiceStates()
+                        .collectList()
+                        .doOnNext(states -> seed(guild.getId(), states))
+                        .thenReturn(guild)
+                )
+                .share();
+
+        updateFlux = dispatcher.on(VoiceStateUpdateEvent.class)
+                .doOnNext(event -> update(event.getCurrent()))
+                .share();
+    }
+
+    /**
+     * Returns a {@link Flux} emitting the guild of every {@link GuildCreateEvent}, after its voice states were
+     * applied to the occupancy.
+     *
+     * @return A {@link Flux} emitting the created {@link Guild}s.
+     */
+    Flux<Guild> guilds() {
+        return guildFlux;
+    }
+
+    /**
+     * Returns a {@link Flux} emitting every {@link VoiceStateUpdateEvent}, after it was applied to the occupancy.
+     *
+     * @return A {@link Flux} emitting the {@link VoiceStateUpdateEvent}s.
+     */
+    Flux<VoiceStateUpdateEvent> updates() {
+        return updateFlux;
+    }
+
+    /**
+     * Returns the number of users connected to a voice channel.
+     *
+     * @param channel The {@link Snowflake} of the voice channel.
+     * @return The number of connected users.
+     */
+    int occupants(final Snowflake channel) {
+        final Integer count = occupants.get(channel.asLong());
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Returns the users connected to a voice channel.
+     *
+     * @param guild   The {@link Snowflake} of the guild.
+     * @param channel The {@link Snowflake} of the voice channel.
+     * @return A {@link Set} with the {@link Snowflake}s of the connected users.
+     */
+    Set<Snowflake> members(final Snowflake guild, final Snowflake channel) {
+        final GuildOccupancy occupancy = guilds.get(guild.asLong());
+        if (occupancy == null)
+            return Set.of();
+        final long id = channel.asLong();
+        synchronized (occupancy) {
+            return occupancy.channels.entrySet()
+                    .stream()
+                    .filter(entry -> entry.getValue() == id)
+                    .map(entry -> Snowflake.of(entry.getKey()))
+                    .collect(Collectors.toSet());
+        }
+    }
+
+    /**
+     * Returns a boolean indicating if the voice channel is empty.
+     *
+     * @param channel The {@link VoiceChannel} to be checked.
+     * @return {@code true} if nobody is connected to the voice channel.
+     */
+    boolean isEmpty(final VoiceChannel channel) {
+        return occupants(channel.getId()) <= 0;
+    }
+
+    /**
+     * Requests a boolean indicating if the tracked occupancy of the voice channel matches the voice states in the
+     * store.
+     *
+     * @param channel The {@link VoiceChannel} to be checked.
+     * @return A {@link Mono} emitting {@code true} if the occupancy is consistent.
+     */
+    Mono<Boolean> isConsistent(final VoiceChannel channel) {
+        return channel.getVoiceStates()
+                .count()
+                .map(count -> count == occupants(channel.getId()));
+    }
+
+    /**
+     * Requests all voice channels of a guild, whose tracked occupancy drifted from the voice states in the store.
+     *
+     * @param guild The {@link Guild} to be checked.
+     * @return A {@link Flux} emitting the inconsistent {@link VoiceChannel}s.
+     */
+    Flux<VoiceChannel> drift(final Guild guild) {
+        return guild.getChannels()
+                .filter(channel -> channel.getType() == Channel.Type.GUILD_VOICE)
+                .cast(VoiceChannel.class)
+                .filterWhen(channel -> isConsistent(channel).map(bool -> !bool));
+    }
+
+    /**
+     * Replaces the occupancy of a guild with the provided voice states.
+     *
+     * @param guild  The {@link Snowflake} of the guild.
+     * @param states All current {@link VoiceState}s of the guild.
+     */
+    private void seed(final Snowflake guild, final List<VoiceState> states) {
+        final GuildOccupancy occupancy = guilds.computeIfAbsent(guild.asLong(), id -> new GuildOccupancy());
+        synchronized (occupancy) {
+            occupancy.channels.values().forEach(channel -> add(channel, -1));
+            occupancy.channels.clear();
+            states.forEach(state -> state.getChannelId().ifPresent(channel -> {
+                occupancy.channels.put(state.getUserId().asLong(), channel.asLong());
+                add(channel.asLong(), 1);
+            }));
+        }
+    }
+
+    /**
+     * Moves the user of the voice state into its current channel, or removes it if disconnected.
+     *
+     * @param state The current {@link VoiceState} of the user.
+     */
+    private void update(final VoiceState state) {
+        final GuildOccupancy occupancy = guilds.computeIfAbsent(state.getGuildId().asLong(),
+                id -> new GuildOccupancy());
+        final long user = state.getUserId().asLong();
+        final Long current = state.getChannelId().map(Snowflake::asLong).orElse(null);
+        synchronized (occupancy) {
+            final Long previous = current == null ? occupancy.channels.remove(user) :
+                    occupancy.channels.put(user, current);
+            if (previous != null && !previous.equals(current))
+                add(previous, -1);
+            if (current != null && !current.equals(previous))
+                add(current, 1);
+        }
+    }
+
+    /**
+     * Adds the delta to the occupants of a channel. Only called while holding the lock of the guild of the channel.
+     *
+     * @param channel The id of the voice channel.
+     * @param delta   The number of users joined, or left if negative.
+     */
+    private void add(final long channel, final int delta) {
+        if (delta > 0)
+            occupants.merge(channel, delta, Integer::sum);
+        else
+            occupants.computeIfPresent(channel, (id, count) -> count + delta <= 0 ? null : count + delta);
+    }
+
+    private static final class GuildOccupancy {
+        private final Map<Long, Long> channels = new HashMap<>();
+    }
+}
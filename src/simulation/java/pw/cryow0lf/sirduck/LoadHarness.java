@@ -0,0 +1,279 @@
+package pw.cryow0lf.sirduck;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import discord4j.core.DiscordClient;
+import discord4j.core.object.entity.Channel;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class replays synthetic voice traffic against both features through a {@link SimulatedDiscord} and reports
+ * how the bot behaved.
+ * <p>
+ * It creates the guilds, then sends joins, moves and disconnects of random users at a fixed rate, and finally waits
+ * until the bot stopped sending requests. The report contains the REST calls per event, the latency from a join to
+ * its effect, duplicate channel creations and all violations of the expected final state:
+ * <ul>
+ * <li>Every occupied voice channel has exactly one temporary text channel, and every empty one has none.</li>
+ * <li>Every talk family consists of the numbers 1 up to its highest used number plus the spare channels.</li>
+ * </ul>
+ * All options are passed as {@code key=value}, e.g. {@code guilds=10 channels=200 events=5000 rate=200}.
+ */
+public final class LoadHarness {
+    private static final Pattern CHANNEL_PATTERN = Pattern.compile("(.+?)(\\d+)");
+
+    private final Map<String, String> options;
+    private final SimulatedDiscord discord;
+    private final Random random;
+    private final Map<Long, Long> users = new ConcurrentHashMap<>();
+    private final List<Join> joins = new ArrayList<>();
+    private final Map<String, Integer> initialChannels = new HashMap<>();
+    private final Metrics metrics = new Metrics();
+
+    private LoadHarness(final Map<String, String> options) {
+        this.options = options;
+        this.discord = new SimulatedDiscord(Duration.ofMillis(option("latency", 50)));
+        this.random = new Random(option("seed", 42));
+    }
+
+    /**
+     * Runs the simulation and prints the report.
+     *
+     * @param args The options as {@code key=value}: {@code guilds} (default 10), {@code channels} per guild (100),
+     *             {@code families} per guild (10), {@code users} per guild (50), {@code events} (2000), {@code rate}
+     *             in events per second (100), {@code latency} of a REST request in ms (50), {@code grace} period in
+     *             ms (1000), the {@code spares} per talk family (1), the {@code seed} of the traffic (42) and
+     *             whether to print the {@code metrics} of the bot (0).
+     */
+    public static void main(final String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        for (final String arg : args) {
+            final int separator = arg.indexOf('=');
+            if (separator < 0)
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        new LoadHarness(options).run();
+        System.exit(0);
+    }
+
+    private void run() {
+        final Duration gracePeriod = Duration.ofMillis(option("grace", 1000));
+        final DiscordClient client = discord.getClient();
+        metrics.countEvents(client.getEventDispatcher());
+        final VoiceOccupancy occupancy = new VoiceOccupancy(client.getEventDispatcher());
+        final ActionQueue actions = new ActionQueue(256, 2, metrics);
+        final FeatureConfig config = new FeatureConfig(new FeatureConfig.Settings(true, true, gracePeriod,
+                (int) option("spares", 1), 0, null));
+        final TemporaryChannelIndex temporaryChannelIndex = new TemporaryChannelIndex();
+        final PositionPlanner positions = new PositionPlanner(config, temporaryChannelIndex, actions, metrics);
+        final TemporaryTextChannels temporaryTextChannels = new TemporaryTextChannels(client.getEventDispatcher(),
+                occupancy, actions, temporaryChannelIndex, config, null, positions, metrics);
+        final AdditionalTalkChannels additionalTalkChannels = new AdditionalTalkChannels(client.getEventDispatcher(),
+                occupancy, actions, new TalkChannelFamilies(), config, positions, metrics);
+        new ReconciliationEngine(client.getEventDispatcher(), occupancy, 4,
+                List.of(temporaryTextChannels, additionalTalkChannels), metrics);
+
+        final int families = (int) option("families", 10);
+        final int channels = (int) option("channels", 100);
+        final List<Long> guilds = new ArrayList<>();
+        for (int guild = 0; guild < option("guilds", 10); guild++)
+            guilds.add(discord.createGuild(families, Math.max(0, channels - families - 1)));
+        guilds.forEach(guild -> discord.channels(guild)
+                .forEach(channel -> initialChannels.merge(key(channel), 1, Integer::sum)));
+
+        final long events = option("events", 2000);
+        final long started = System.nanoTime();
+        Flux.interval(Duration.ofNanos(1_000_000_000L / option("rate", 100)))
+                .take(events)
+                .doOnNext(tick -> event(guilds.get(random.nextInt(guilds.size()))))
+                .blockLast();
+        final Duration sending = Duration.ofNanos(System.nanoTime() - started);
+        awaitQuiescence(gracePeriod.plusSeconds(2));
+
+        report(guilds, events, sending);
+    }
+
+    private void event(final long guild) {
+        final long user = guild * 1000 + random.nextInt((int) option("users", 50));
+        final Long current = users.get(user);
+        if (current != null && random.nextInt(3) == 0) {
+            users.remove(user);
+            discord.moveUser(guild, user, null);
+            return;
+        }
+
+        final List<Long> voiceChannels = discord.voiceChannels(guild);
+        final long channel = voiceChannels.get(random.nextInt(voiceChannels.size()));
+        if (current != null && current == channel)
+            return;
+        synchronized (joins) {
+            joins.add(new Join(user, channel, System.nanoTime()));
+        }
+        users.put(user, channel);
+        discord.moveUser(guild, user, channel);
+    }
+
+    private void awaitQuiescence(final Duration quiet) {
+        int calls = -1;
+        while (calls != discord.getCalls().size()) {
+            calls = discord.getCalls().size();
+            try {
+                Thread.sleep(quiet.toMillis());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void report(final List<Long> guilds, final long events, final Duration sending) {
+        final List<SimulatedDiscord.RestCall> calls = discord.getCalls();
+        final Map<String, Integer> routes = new TreeMap<>();
+        calls.forEach(call -> routes.merge(call.toString(), 1, Integer::sum));
+
+        System.out.printf("Events: %d in %d ms%n", events, sending.toMillis());
+        System.out.printf("REST calls: %d (%.3f per event)%n", calls.size(), (double) calls.size() / events);
+        routes.forEach((route, count) -> System.out.printf("  %-40s %d%n", route, count));
+
+        final List<Long> latencies = latencies(calls);
+        latencies.sort(Long::compare);
+        System.out.printf("Join to permission latency: %d joins served, %d already served or lost%n",
+                latencies.size(), joins.size() - latencies.size());
+        for (final double percentile : new double[]{0.5, 0.9, 0.99, 1})
+            System.out.printf("  p%-5s %d ms%n", percentile * 100, latencies.isEmpty() ? 0 :
+                    Duration.ofNanos(latencies.get((int) Math.ceil(percentile * latencies.size()) - 1)).toMillis());
+
+        System.out.printf("Duplicate creations: %d%n", duplicates(calls));
+
+        final List<String> violations = new ArrayList<>();
+        guilds.forEach(guild -> verify(guild, violations));
+        System.out.printf("Final state violations: %d%n", violations.size());
+        violations.stream().limit(20).forEach(violation -> System.out.println("  " + violation));
+
+        if (option("metrics", 0) != 0)
+            System.out.print(metrics.scrape());
+    }
+
+    /**
+     * Returns the time from every join until the temporary text channel of the voice channel first allowed the
+     * user, either by being created or by an edit.
+     */
+    private List<Long> latencies(final List<SimulatedDiscord.RestCall> calls) {
+        final Map<String, List<SimulatedDiscord.RestCall>> byTopic = new HashMap<>();
+        calls.stream()
+                .filter(call -> call.getChannel() != null && call.getChannel().has("topic"))
+                .filter(call -> !call.getMethod().equals("DELETE") && !call.getMethod().equals("GET"))
+                .forEach(call -> byTopic.computeIfAbsent(call.getChannel().path("topic").asText(),
+                        topic -> new ArrayList<>()).add(call));
+
+        final List<Long> latencies = new ArrayList<>();
+        for (final Join join : joins) {
+            for (final SimulatedDiscord.RestCall call : byTopic.getOrDefault(Long.toUnsignedString(join.channel),
+                    List.of())) {
+                if (call.getFinished() >= join.time && allows(call.getChannel(), join.user)) {
+                    latencies.add(call.getFinished() - join.time);
+                    break;
+                }
+            }
+        }
+        return latencies;
+    }
+
+    private static boolean allows(final JsonNode channel, final long user) {
+        for (final JsonNode overwrite : channel.path("permission_overwrites")) {
+            if (overwrite.path("id").asLong() == user && overwrite.path("allow").asLong() != 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Counts the channels created while a channel of the same type and name already existed in the category.
+     */
+    private int duplicates(final List<SimulatedDiscord.RestCall> calls) {
+        final Map<String, Integer> live = new HashMap<>(initialChannels);
+        int duplicates = 0;
+        final List<SimulatedDiscord.RestCall> ordered = new ArrayList<>(calls);
+        ordered.sort((first, second) -> Long.compare(first.getFinished(), second.getFinished()));
+        for (final SimulatedDiscord.RestCall call : ordered) {
+            if (call.getMethod().equals("POST") && live.merge(key(call.getChannel()), 1, Integer::sum) > 1)
+                duplicates++;
+            else if (call.getMethod().equals("DELETE"))
+                live.merge(key(call.getChannel()), -1, Integer::sum);
+        }
+        return duplicates;
+    }
+
+    private static String key(final JsonNode channel) {
+        return channel.path("guild_id").asText() + '/' + channel.path("parent_id").asText() + '/'
+                + channel.path("type").asInt() + '/' + channel.path("name").asText();
+    }
+
+    private void verify(final long guild, final List<String> violations) {
+        final List<ObjectNode> channels = discord.channels(guild);
+        final Map<Long, Integer> occupancy = discord.occupancy(guild);
+
+        final Map<String, Integer> textChannels = new HashMap<>();
+        channels.stream()
+                .filter(channel -> channel.path("type").asInt() == Channel.Type.GUILD_TEXT.getValue())
+                .forEach(channel -> textChannels.merge(channel.path("topic").asText(), 1, Integer::sum));
+
+        final Map<String, TreeMap<Integer, Long>> families = new HashMap<>();
+        channels.stream()
+                .filter(channel -> channel.path("type").asInt() == Channel.Type.GUILD_VOICE.getValue())
+                .forEach(channel -> {
+                    final long id = channel.path("id").asLong();
+                    final int expected = occupancy.getOrDefault(id, 0) > 0 ? 1 : 0;
+                    final int actual = textChannels.getOrDefault(Long.toUnsignedString(id), 0);
+                    if (actual != expected)
+                        violations.add(String.format("%s has %d temporary text channels, expected %d",
+                                channel.path("name").asText(), actual, expected));
+
+                    final Matcher matcher = CHANNEL_PATTERN.matcher(channel.path("name").asText());
+                    if (matcher.matches() && families.computeIfAbsent(channel.path("parent_id").asText() + '/'
+                            + matcher.group(1), family -> new TreeMap<>())
+                            .put(Integer.parseInt(matcher.group(2)), id) != null)
+                        violations.add("Duplicate talk channel " + channel.path("name").asText());
+                });
+
+        families.forEach((family, numbers) -> {
+            int used = 0;
+            for (final Map.Entry<Integer, Long> entry : numbers.entrySet()) {
+                if (occupancy.getOrDefault(entry.getValue(), 0) > 0)
+                    used = entry.getKey();
+            }
+            final int expected = Math.max(used + (int) option("spares", 1), 1);
+            if (numbers.lastKey() != expected || numbers.size() != expected || numbers.firstKey() != 1)
+                violations.add(String.format("Family %s has %s, expected 1 to %d", family, numbers.keySet(),
+                        expected));
+        });
+    }
+
+    private long option(final String key, final long defaultValue) {
+        return options.containsKey(key) ? Long.parseLong(options.get(key)) : defaultValue;
+    }
+
+    private static final class Join {
+        private final long user;
+        private final long channel;
+        private final long time;
+
+        private Join(final long user, final long channel, final long time) {
+            this.user = user;
+            this.channel = channel;
+            this.time = time;
+        }
+    }
+}
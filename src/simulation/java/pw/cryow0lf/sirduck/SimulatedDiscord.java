@@ -0,0 +1,412 @@
+package pw.cryow0lf.sirduck;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import discord4j.common.JacksonResourceProvider;
+import discord4j.core.DiscordClient;
+import discord4j.core.DiscordClientBuilder;
+import discord4j.core.event.domain.Event;
+import discord4j.core.event.domain.VoiceStateUpdateEvent;
+import discord4j.core.event.domain.channel.TextChannelCreateEvent;
+import discord4j.core.event.domain.channel.TextChannelDeleteEvent;
+import discord4j.core.event.domain.channel.TextChannelUpdateEvent;
+import discord4j.core.event.domain.channel.VoiceChannelCreateEvent;
+import discord4j.core.event.domain.channel.VoiceChannelDeleteEvent;
+import discord4j.core.event.domain.channel.VoiceChannelUpdateEvent;
+import discord4j.core.event.domain.guild.GuildCreateEvent;
+import discord4j.core.object.VoiceState;
+import discord4j.core.object.data.stored.ChannelBean;
+import discord4j.core.object.data.stored.GuildBean;
+import discord4j.core.object.data.stored.VoiceStateBean;
+import discord4j.core.object.entity.Channel;
+import discord4j.core.object.entity.Guild;
+import discord4j.core.object.entity.TextChannel;
+import discord4j.core.object.entity.VoiceChannel;
+import discord4j.rest.json.response.ChannelResponse;
+import discord4j.rest.request.DiscordRequest;
+import discord4j.rest.request.Router;
+import discord4j.store.api.util.LongLongTuple2;
+import io.netty.handler.codec.http.HttpMethod;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class stands in for the discord gateway and REST API, so the features can be run without connecting.
+ * <p>
+ * It owns a {@link DiscordClient} which is never logged in. Guilds, channels and voice states are written into the
+ * store of the client and the matching events are published to its event dispatcher, as the gateway would do. All
+ * REST requests of the client are answered by this class acting as its {@link Router}: Creating, editing, fetching
+ * and deleting channels as well as moving them in bulk is applied to the simulated guild, followed by the
+ * corresponding gateway events, after a configurable latency. Every request is recorded as a {@link RestCall}.
+ */
+final class SimulatedDiscord implements Router {
+    private final ObjectMapper mapper = new JacksonResourceProvider().getObjectMapper();
+    private final AtomicLong ids = new AtomicLong(1_000_000);
+    private final Map<Long, ObjectNode> channels = new HashMap<>();
+    private final Map<Long, List<Long>> guildChannels = new HashMap<>();
+    private final Map<Long, Long> voiceStates = new HashMap<>();
+    private final List<RestCall> calls = Collections.synchronizedList(new ArrayList<>());
+    private final DiscordClient client;
+    private final Duration latency;
+
+    /**
+     * @param latency The {@link Duration} every REST request takes.
+     */
+    SimulatedDiscord(final Duration latency) {
+        this.latency = latency;
+        this.client = new DiscordClientBuilder("simulated")
+                .setRouterFactory(httpClient -> this)
+                .build();
+    }
+
+    /**
+     * Returns the simulated client, which the features subscribe to.
+     *
+     * @return The {@link DiscordClient}.
+     */
+    DiscordClient getClient() {
+        return client;
+    }
+
+    /**
+     * Returns all REST requests made so far.
+     *
+     * @return A copy of the recorded {@link RestCall}s.
+     */
+    List<RestCall> getCalls() {
+        synchronized (calls) {
+            return new ArrayList<>(calls);
+        }
+    }
+
+    /**
+     * Creates a guild with a category and publishes its {@link GuildCreateEvent}.
+     *
+     * @param families      The number of talk channel families, each starting with a single channel.
+     * @param voiceChannels The number of additional plain voice channels.
+     * @return The id of the guild.
+     */
+    synchronized long createGuild(final int families, final int voiceChannels) {
+        final long guild = ids.incrementAndGet();
+        guildChannels.put(guild, new ArrayList<>());
+        final ObjectNode categoryChannel = channel(guild, Channel.Type.GUILD_CATEGORY, "Talks", 0, null);
+        putChannel(guild, categoryChannel);
+        final long category = categoryChannel.path("id").asLong();
+        for (int family = 0; family < families; family++)
+            putChannel(guild, channel(guild, Channel.Type.GUILD_VOICE, "Talk " + letters(family) + " 1", family + 1,
+                    category));
+        for (int voice = 0; voice < voiceChannels; voice++)
+            putChannel(guild, channel(guild, Channel.Type.GUILD_VOICE, "Lounge " + letters(voice),
+                    families + voice + 1, null));
+
+        final GuildBean bean = new GuildBean();
+        bean.setId(guild);
+        bean.setName("Guild " + guild);
+        bean.setChannels(channelIds(guild));
+        bean.setRoles(new long[0]);
+        bean.setEmojis(new long[0]);
+        bean.setMembers(new long[0]);
+        client.getServiceMediator().getStateHolder().getGuildStore().save(guild, bean).block();
+        publish(new GuildCreateEvent(client, new Guild(client.getServiceMediator(), bean)));
+        return guild;
+    }
+
+    /**
+     * Returns the ids of all voice channels of a guild.
+     *
+     * @param guild The id of the guild.
+     * @return A {@link List} with the ids of the voice channels.
+     */
+    synchronized List<Long> voiceChannels(final long guild) {
+        final List<Long> voice = new ArrayList<>();
+        for (final long channel : guildChannels.get(guild)) {
+            if (channels.get(channel).path("type").asInt() == Channel.Type.GUILD_VOICE.getValue())
+                voice.add(channel);
+        }
+        return voice;
+    }
+
+    /**
+     * Returns a copy of all channels of a guild, as the simulated discord sees them.
+     *
+     * @param guild The id of the guild.
+     * @return A {@link List} with the channels in the JSON form of the REST API.
+     */
+    synchronized List<ObjectNode> channels(final long guild) {
+        final List<ObjectNode> copy = new ArrayList<>();
+        guildChannels.get(guild).forEach(channel -> copy.add(channels.get(channel).deepCopy()));
+        return copy;
+    }
+
+    /**
+     * Returns the voice channel every user of a guild is connected to.
+     *
+     * @param guild The id of the guild.
+     * @return A {@link Map} from the id of the voice channel to the number of connected users.
+     */
+    synchronized Map<Long, Integer> occupancy(final long guild) {
+        final Map<Long, Integer> occupancy = new HashMap<>();
+        voiceStates.forEach((user, channel) -> {
+            final ObjectNode node = channels.get(channel);
+            if (node != null && node.path("guild_id").asLong() == guild)
+                occupancy.merge(channel, 1, Integer::sum);
+        });
+        return occupancy;
+    }
+
+    /**
+     * Moves a user into a voice channel, or disconnects the user, and publishes the {@link VoiceStateUpdateEvent}.
+     *
+     * @param guild   The id of the guild.
+     * @param user    The id of the user.
+     * @param channel The id of the voice channel, or {@code null} to disconnect.
+     */
+    void moveUser(final long guild, final long user, final Long channel) {
+        final VoiceStateBean current = voiceState(guild, user, channel);
+        final VoiceStateBean old;
+        synchronized (this) {
+            final Long previous = channel == null ? voiceStates.remove(user) : voiceStates.put(user, channel);
+            old = previous == null ? null : voiceState(guild, user, previous);
+        }
+        final LongLongTuple2 key = LongLongTuple2.of(guild, user);
+        (channel == null ? client.getServiceMediator().getStateHolder().getVoiceStateStore().delete(key) :
+                client.getServiceMediator().getStateHolder().getVoiceStateStore().save(key, current)).block();
+        publish(new VoiceStateUpdateEvent(client, new VoiceState(client.getServiceMediator(), current),
+                old == null ? null : new VoiceState(client.getServiceMediator(), old)));
+    }
+
+    /**
+     * Answers a REST request of the client after the simulated latency.
+     *
+     * @param request The {@link DiscordRequest} to be answered.
+     * @param <T>     The type of the response.
+     * @return A {@link Mono} emitting the response.
+     */
+    @Override
+    public <T> Mono<T> exchange(final DiscordRequest<T> request) {
+        final HttpMethod method = request.getRoute().getMethod();
+        final String uri = request.getCompleteUri();
+        final long started = System.nanoTime();
+        return Mono.delay(latency)
+                .publishOn(Schedulers.elastic())
+                .map(tick -> {
+                    final ObjectNode response = handle(method, uri, request.getBody());
+                    calls.add(new RestCall(method.name(), request.getRoute().getUriTemplate(), response, started,
+                            System.nanoTime()));
+                    return response;
+                })
+                .filter(response -> request.getRoute().getResponseType() != Void.class)
+                .map(response -> mapper.convertValue(response, request.getRoute().getResponseType()));
+    }
+
+    private ObjectNode handle(final HttpMethod method, final String uri, final Object body) {
+        final String[] path = uri.split("\\?")[0].split("/");
+        final long id = Long.parseUnsignedLong(path[path.length - (path[path.length - 1].equals("channels") ? 2 : 1)]);
+        if (method.equals(HttpMethod.POST) && uri.contains("/guilds/"))
+            return createChannel(id, mapper.valueToTree(body));
+        if (method.equals(HttpMethod.PATCH) && uri.contains("/guilds/"))
+            return modifyPositions(mapper.valueToTree(body));
+        if (method.equals(HttpMethod.PATCH))
+            return editChannel(id, mapper.valueToTree(body));
+        if (method.equals(HttpMethod.DELETE))
+            return deleteChannel(id);
+        if (method.equals(HttpMethod.GET) && uri.contains("/channels/"))
+            return getChannel(id);
+        throw new UnsupportedOperationException("Not simulated: " + method + " " + uri);
+    }
+
+    private ObjectNode createChannel(final long guild, final ObjectNode request) {
+        final ObjectNode channel;
+        synchronized (this) {
+            channel = request.deepCopy();
+            channel.put("id", Long.toUnsignedString(ids.incrementAndGet()));
+            channel.put("guild_id", Long.toUnsignedString(guild));
+            if (!channel.has("permission_overwrites"))
+                channel.putArray("permission_overwrites");
+            putChannel(guild, channel);
+            updateGuildChannels(guild);
+        }
+        final ChannelBean bean = bean(channel);
+        client.getServiceMediator().getStateHolder().getChannelStore().save(bean.getId(), bean).block();
+        publish(bean.getType() == Channel.Type.GUILD_TEXT.getValue() ?
+                new TextChannelCreateEvent(client, new TextChannel(client.getServiceMediator(), bean)) :
+                new VoiceChannelCreateEvent(client, new VoiceChannel(client.getServiceMediator(), bean)));
+        return channel;
+    }
+
+    private ObjectNode editChannel(final long id, final ObjectNode request) {
+        final ObjectNode channel;
+        final ChannelBean old;
+        synchronized (this) {
+            channel = channels.get(id);
+            if (channel == null)
+                throw new IllegalStateException("Unknown channel " + id);
+            old = bean(channel);
+            request.fields().forEachRemaining(field -> channel.set(field.getKey(), field.getValue()));
+        }
+        final ChannelBean bean = bean(channel);
+        client.getServiceMediator().getStateHolder().getChannelStore().save(bean.getId(), bean).block();
+        publish(bean.getType() == Channel.Type.GUILD_TEXT.getValue() ?
+                new TextChannelUpdateEvent(client, new TextChannel(client.getServiceMediator(), bean),
+                        new TextChannel(client.getServiceMediator(), old)) :
+                new VoiceChannelUpdateEvent(client, new VoiceChannel(client.getServiceMediator(), bean),
+                        new VoiceChannel(client.getServiceMediator(), old)));
+        return channel.deepCopy();
+    }
+
+    private ObjectNode modifyPositions(final JsonNode request) {
+        for (final JsonNode position : request)
+            editChannel(position.path("id").asLong(), mapper.createObjectNode()
+                    .put("position", position.path("position").asInt()));
+        return mapper.createObjectNode();
+    }
+
+    private ObjectNode deleteChannel(final long id) {
+        final ObjectNode channel;
+        synchronized (this) {
+            channel = channels.remove(id);
+            if (channel == null)
+                throw new IllegalStateException("Unknown channel " + id);
+            final long guild = channel.path("guild_id").asLong();
+            guildChannels.get(guild).remove(id);
+            updateGuildChannels(guild);
+            final Iterator<Map.Entry<Long, Long>> states = voiceStates.entrySet().iterator();
+            while (states.hasNext()) {
+                if (states.next().getValue() == id)
+                    states.remove();
+            }
+        }
+        final ChannelBean bean = bean(channel);
+        client.getServiceMediator().getStateHolder().getChannelStore().delete(bean.getId()).block();
+        publish(bean.getType() == Channel.Type.GUILD_TEXT.getValue() ?
+                new TextChannelDeleteEvent(client, new TextChannel(client.getServiceMediator(), bean)) :
+                new VoiceChannelDeleteEvent(client, new VoiceChannel(client.getServiceMediator(), bean)));
+        return channel;
+    }
+
+    private synchronized ObjectNode getChannel(final long id) {
+        final ObjectNode channel = channels.get(id);
+        if (channel == null)
+            throw new IllegalStateException("Unknown channel " + id);
+        return channel.deepCopy();
+    }
+
+    private ObjectNode channel(final long guild, final Channel.Type type, final String name, final int position,
+                               final Long parent) {
+        final ObjectNode channel = mapper.createObjectNode();
+        channel.put("id", Long.toUnsignedString(ids.incrementAndGet()));
+        channel.put("guild_id", Long.toUnsignedString(guild));
+        channel.put("type", type.getValue());
+        channel.put("name", name);
+        channel.put("position", position);
+        channel.putArray("permission_overwrites");
+        if (parent != null)
+            channel.put("parent_id", Long.toUnsignedString(parent));
+        if (type == Channel.Type.GUILD_VOICE) {
+            channel.put("bitrate", 64000);
+            channel.put("user_limit", 0);
+        }
+        return channel;
+    }
+
+    /**
+     * Returns a name for the index, which does not end with a digit, like {@code a}, {@code b} or {@code aa}.
+     */
+    private static String letters(final int index) {
+        final StringBuilder letters = new StringBuilder();
+        for (int value = index; value >= 0; value = value / 26 - 1)
+            letters.insert(0, (char) ('a' + value % 26));
+        return letters.toString();
+    }
+
+    private void putChannel(final long guild, final ObjectNode channel) {
+        final long id = channel.path("id").asLong();
+        channels.put(id, channel);
+        guildChannels.get(guild).add(id);
+        final ChannelBean bean = bean(channel);
+        client.getServiceMediator().getStateHolder().getChannelStore().save(id, bean).block();
+    }
+
+    private void updateGuildChannels(final long guild) {
+        client.getServiceMediator().getStateHolder().getGuildStore().find(guild)
+                .doOnNext(bean -> bean.setChannels(channelIds(guild)))
+                .flatMap(bean -> client.getServiceMediator().getStateHolder().getGuildStore().save(guild, bean))
+                .block();
+    }
+
+    private long[] channelIds(final long guild) {
+        return guildChannels.get(guild).stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private ChannelBean bean(final ObjectNode channel) {
+        return new ChannelBean(mapper.convertValue(channel, ChannelResponse.class));
+    }
+
+    private VoiceStateBean voiceState(final long guild, final long user, final Long channel) {
+        final VoiceStateBean bean = new VoiceStateBean();
+        bean.setGuildId(guild);
+        bean.setUserId(user);
+        bean.setChannelId(channel);
+        bean.setSessionId("simulated-" + user);
+        return bean;
+    }
+
+    private void publish(final Event event) {
+        client.getEventDispatcher().publish(event);
+    }
+
+    /**
+     * A REST request answered by the simulation.
+     */
+    static final class RestCall {
+        private final String method;
+        private final String route;
+        private final ObjectNode channel;
+        private final long started;
+        private final long finished;
+
+        private RestCall(final String method, final String route, final ObjectNode channel, final long started,
+                         final long finished) {
+            this.method = method;
+            this.route = route;
+            this.channel = channel;
+            this.started = started;
+            this.finished = finished;
+        }
+
+        String getMethod() {
+            return method;
+        }
+
+        String getRoute() {
+            return route;
+        }
+
+        ObjectNode getChannel() {
+            return channel;
+        }
+
+        long getStarted() {
+            return started;
+        }
+
+        long getFinished() {
+            return finished;
+        }
+
+        @Override
+        public String toString() {
+            return method + ' ' + route;
+        }
+    }
+}
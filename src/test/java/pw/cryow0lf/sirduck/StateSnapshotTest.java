@@ -0,0 +1,126 @@
+package pw.cryow0lf.sirduck;
+
+import discord4j.core.object.util.Snowflake;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that a {@link StateSnapshot} restores the indexes it saved, and rejects any file it did not write as a whole.
+ */
+class StateSnapshotTest {
+    private static final Snowflake GUILD = Snowflake.of(100);
+    private static final Snowflake EMPTY_GUILD = Snowflake.of(101);
+    private static final Optional<Snowflake> CATEGORY = Optional.of(Snowflake.of(200));
+
+    @TempDir
+    Path directory;
+
+    private Path path;
+    private final TemporaryChannelIndex temporaryChannels = new TemporaryChannelIndex();
+    private final TalkChannelFamilies talkChannels = new TalkChannelFamilies();
+
+    @BeforeEach
+    void save() throws IOException {
+        path = directory.resolve("sirduck.snapshot");
+        temporaryChannels.replace(GUILD, Map.of(Snowflake.of(1), Snowflake.of(2), Snowflake.of(3),
+                Snowflake.of(-1)));
+        temporaryChannels.replace(EMPTY_GUILD, Map.of());
+        talkChannels.replace(GUILD, sink -> {
+            sink.put(CATEGORY, "Talk ", 1, Snowflake.of(1));
+            sink.put(CATEGORY, "Talk ", 2, Snowflake.of(3));
+            sink.put(Optional.empty(), "G\u00e4ste \uD83E\uDD86 ", Integer.MAX_VALUE, Snowflake.of(Long.MAX_VALUE));
+        });
+        talkChannels.replace(EMPTY_GUILD, sink -> {
+        });
+        new StateSnapshot(path, temporaryChannels, talkChannels).save();
+    }
+
+    @Test
+    void restoresSavedIndexes() {
+        final TemporaryChannelIndex restoredTemporaryChannels = new TemporaryChannelIndex();
+        final TalkChannelFamilies restoredTalkChannels = new TalkChannelFamilies();
+        assertTrue(new StateSnapshot(path, restoredTemporaryChannels, restoredTalkChannels).load());
+
+        assertEquals(temporaryChannels.guilds(), restoredTemporaryChannels.guilds());
+        for (final Snowflake guild : temporaryChannels.guilds())
+            assertEquals(temporaryChannels.channels(guild), restoredTemporaryChannels.channels(guild));
+        assertEquals(talkChannels.guilds(), restoredTalkChannels.guilds());
+        for (final Snowflake guild : talkChannels.guilds())
+            assertEquals(entries(talkChannels, guild), entries(restoredTalkChannels, guild));
+    }
+
+    @Test
+    void keepsIndexedGuilds() {
+        final TemporaryChannelIndex restoredTemporaryChannels = new TemporaryChannelIndex();
+        final TalkChannelFamilies restoredTalkChannels = new TalkChannelFamilies();
+        restoredTemporaryChannels.replace(GUILD, Map.of(Snowflake.of(5), Snowflake.of(6)));
+        restoredTalkChannels.replace(GUILD, sink -> sink.put(CATEGORY, "Talk ", 1, Snowflake.of(5)));
+        assertTrue(new StateSnapshot(path, restoredTemporaryChannels, restoredTalkChannels).load());
+
+        assertEquals(Map.of(Snowflake.of(5), Snowflake.of(6)), restoredTemporaryChannels.channels(GUILD));
+        assertEquals(Set.of(CATEGORY + "/Talk /1/5"), entries(restoredTalkChannels, GUILD));
+        assertTrue(restoredTemporaryChannels.isIndexed(EMPTY_GUILD));
+        assertTrue(restoredTalkChannels.isIndexed(EMPTY_GUILD));
+    }
+
+    @Test
+    void rejectsTruncatedSnapshots() throws IOException {
+        final byte[] contents = Files.readAllBytes(path);
+        for (int length = 0; length < contents.length; length++) {
+            Files.write(path, Arrays.copyOf(contents, length));
+            assertRejected("truncated to " + length + " bytes");
+        }
+    }
+
+    @Test
+    void rejectsTrailingData() throws IOException {
+        final byte[] contents = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(contents, contents.length + 1));
+        assertRejected("trailing data");
+    }
+
+    @Test
+    void rejectsOtherFiles() throws IOException {
+        final byte[] contents = Files.readAllBytes(path);
+        ByteBuffer.wrap(contents).putInt(0, 0x12345678);
+        Files.write(path, contents);
+        assertRejected("wrong magic");
+
+        ByteBuffer.wrap(contents).putInt(0, 0x53445331).putInt(4, 2);
+        Files.write(path, contents);
+        assertRejected("unsupported version");
+
+        Files.delete(path);
+        assertRejected("missing file");
+    }
+
+    private void assertRejected(final String message) {
+        final TemporaryChannelIndex restoredTemporaryChannels = new TemporaryChannelIndex();
+        final TalkChannelFamilies restoredTalkChannels = new TalkChannelFamilies();
+        assertFalse(new StateSnapshot(path, restoredTemporaryChannels, restoredTalkChannels).load(), message);
+        assertTrue(restoredTemporaryChannels.guilds().isEmpty(), message);
+        assertTrue(restoredTalkChannels.guilds().isEmpty(), message);
+    }
+
+    private static Set<String> entries(final TalkChannelFamilies families, final Snowflake guild) {
+        final Set<String> entries = new TreeSet<>();
+        families.forEach(guild, (category, topic, number, channel) ->
+                entries.add(category + "/" + topic + '/' + number + '/' + channel.asString()));
+        return entries;
+    }
+}
@@ -0,0 +1,98 @@
+package pw.cryow0lf.sirduck;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the hand-written parser of {@link TalkChannelName} against the pattern {@code (.+?)(\d+)} it replaced.
+ */
+class TalkChannelNameTest {
+    private static final Pattern PATTERN = Pattern.compile("(.+?)(\\d+)");
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "", " ", "5", "0", "00", "123", "Talk", "Talk 1", "Talk 10", "Talk 007", "Talk 1 ", "1a", "a1b2", "1 2",
+            "-5", "a-5", "a+5", "  7", "a2147483647", "a2147483648", "a02147483647", "a000000000000000001",
+            "a99999999999", "99999999999", "Talk \u0661", "Talk \uFF11", "\uD83E\uDD86 3", "\uD83E\uDD863",
+            "Talk\n1", "\n12", "a\r\n3", "Talk\u00851", "Talk\u20281", "Talk\u20291"
+    })
+    void matchesPattern(final String name) {
+        assertEquals(byPattern(name), TalkChannelName.parse(name)
+                .map(parsed -> parsed.getTopic() + '|' + parsed.getNumber()), name);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "'Talk 2', 'Talk ', 2",
+            "'Talk 007', 'Talk ', 7",
+            "123, 1, 23",
+            "a2147483647, a, 2147483647",
+            "a02147483647, a, 2147483647"
+    })
+    void parses(final String name, final String topic, final int number) {
+        final TalkChannelName parsed = TalkChannelName.parse(name).orElseThrow();
+        assertEquals(topic, parsed.getTopic());
+        assertEquals(number, parsed.getNumber());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", "5", "Talk", "Talk 1 ", "1a", "a2147483648", "Talk\n1"})
+    void rejects(final String name) {
+        assertTrue(TalkChannelName.parse(name).isEmpty(), name);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "'Talk 1', , 2, 'Talk 2'",
+            "'Talk 09', , 10, 'Talk 10'",
+            "'Squad #1', '(.+) #(\\d+)', 2, 'Squad #2'",
+            "'Squad 1 (EU)', '(Squad )(\\d+) \\(EU\\)', 10, 'Squad 10 (EU)'",
+            "'Squad 2', '(Squad )(1|2)', 1, 'Squad 1'"
+    })
+    void renamesWithinFamily(final String name, final String pattern, final int number, final String expected) {
+        final Pattern compiled = pattern == null ? null : Pattern.compile(pattern);
+        assertEquals(Optional.of(expected), TalkChannelName.rename(name, compiled, number));
+        final TalkChannelName family = TalkChannelName.parse(name, compiled).orElseThrow();
+        final TalkChannelName renamed = TalkChannelName.parse(expected, compiled).orElseThrow();
+        assertSame(family.getTopic(), renamed.getTopic());
+        assertEquals(number, renamed.getNumber());
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "'Talk', , 2",
+            "'Squad 2', '(Squad )(1|2)', 3",
+            "'Squad #1', '(.+) #(\\d+)', -1"
+    })
+    void rejectsRenamesOutsideFamily(final String name, final String pattern, final int number) {
+        final Pattern compiled = pattern == null ? null : Pattern.compile(pattern);
+        assertTrue(TalkChannelName.rename(name, compiled, number).isEmpty());
+    }
+
+    @Test
+    void internsTopics() {
+        assertSame(TalkChannelName.parse(new String("Talk 1")).orElseThrow().getTopic(),
+                TalkChannelName.parse(new String("Talk 2")).orElseThrow().getTopic());
+    }
+
+    private static Optional<String> byPattern(final String name) {
+        final Matcher matcher = PATTERN.matcher(name);
+        if (!matcher.matches())
+            return Optional.empty();
+        try {
+            return Optional.of(matcher.group(1) + '|' + Integer.parseInt(matcher.group(2)));
+        } catch (final NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+}